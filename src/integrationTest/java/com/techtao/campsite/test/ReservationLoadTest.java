@@ -0,0 +1,184 @@
+package com.techtao.campsite.test;
+
+import com.google.common.collect.Lists;
+import com.techtao.campsite.Application;
+import com.techtao.campsite.persistence.entity.Reservation;
+import com.techtao.campsite.persistence.repository.ReservationRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.http.HttpMethod;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * A load test against the embedded database. It drives a mix of search, reserve, update and cancel calls over HTTP,
+ * reports the throughput and latency percentiles of each endpoint and fails on any double booking.
+ * Tune it with -Dloadtest.threads, -Dloadtest.requests and -Dloadtest.writeRatio.
+ */
+@SpringBootTest(classes = {Application.class}, webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@ActiveProfiles("embedded")
+public class ReservationLoadTest {
+
+    private static final int THREADS = Integer.getInteger("loadtest.threads", 16);
+    private static final int REQUESTS = Integer.getInteger("loadtest.requests", 2000);
+    private static final double WRITE_RATIO = Double.parseDouble(System.getProperty("loadtest.writeRatio", "0.2"));
+
+    @Autowired
+    private TestRestTemplate restTemplate;
+
+    @Autowired
+    private ReservationRepository reservationRepository;
+
+    private final DateTimeFormatter dateTimeFormatter = DateTimeFormatter.ISO_DATE;
+    private final Map<String, List<Long>> latencies = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<String[]> reservations = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger users = new AtomicInteger();
+
+    @BeforeEach
+    public void setUp() {
+        reservationRepository.deleteAll();
+    }
+
+    @AfterEach
+    public void clean() {
+        reservationRepository.deleteAll();
+    }
+
+    @Test
+    public void testMixedLoad() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<CompletableFuture<Void>> futures = Lists.newArrayList();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < REQUESTS; i++) {
+            futures.add(CompletableFuture.runAsync(this::nextRequest, executor));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+        long elapsed = System.nanoTime() - start;
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+
+        System.out.println(String.format("Load test: %d requests, %d threads, write ratio %.2f, %.1f requests/s",
+                REQUESTS, THREADS, WRITE_RATIO, REQUESTS / (elapsed / 1e9)));
+        for (Map.Entry<String, List<Long>> entry : latencies.entrySet()) {
+            List<Long> values = new ArrayList<>(entry.getValue());
+            Collections.sort(values);
+            System.out.println(String.format("  %-8s count=%d p50=%.2fms p95=%.2fms p99=%.2fms max=%.2fms",
+                    entry.getKey(), values.size(), percentile(values, 0.5), percentile(values, 0.95),
+                    percentile(values, 0.99), percentile(values, 1.0)));
+        }
+
+        int violations = countDoubleBookings();
+        System.out.println("  double bookings=" + violations);
+        Assertions.assertEquals(0, violations);
+    }
+
+    private void nextRequest() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (random.nextDouble() >= WRITE_RATIO) {
+            LocalDate today = LocalDate.now();
+            timed("search", () -> restTemplate.getForObject("/api/search?startFrom={startFrom}&endTo={endTo}",
+                    String.class, today.plusDays(1).format(dateTimeFormatter),
+                    today.plusMonths(1).format(dateTimeFormatter)));
+            return;
+        }
+
+        double write = random.nextDouble();
+        String[] reservation = write < 0.6 ? null : reservations.poll();
+        if (reservation == null) {
+            reserve(random);
+        } else if (write < 0.85) {
+            update(random, reservation);
+        } else {
+            timed("cancel", () -> restTemplate.exchange("/api/cancel/{id}?email={email}", HttpMethod.DELETE,
+                    null, String.class, reservation[0], reservation[1]).getBody());
+        }
+    }
+
+    private void reserve(ThreadLocalRandom random) {
+        String email = "user" + users.incrementAndGet() + "@test.com";
+        LocalDate startFrom = LocalDate.now().plusDays(random.nextInt(1, 29));
+        LocalDate endTo = startFrom.plusDays(random.nextInt(0, 3));
+        String result = timed("reserve", () -> restTemplate.exchange(
+                "/api/reserve?userName={userName}&email={email}&startFrom={startFrom}&endTo={endTo}",
+                HttpMethod.PUT, null, String.class, "load", email, startFrom.format(dateTimeFormatter),
+                endTo.format(dateTimeFormatter)).getBody());
+        offerIfReserved(result, email);
+    }
+
+    private void update(ThreadLocalRandom random, String[] reservation) {
+        LocalDate startFrom = LocalDate.now().plusDays(random.nextInt(1, 29));
+        LocalDate endTo = startFrom.plusDays(random.nextInt(0, 3));
+        String result = timed("update", () -> restTemplate.exchange(
+                "/api/update/{id}?email={email}&startFrom={startFrom}&endTo={endTo}",
+                HttpMethod.PUT, null, String.class, reservation[0], reservation[1],
+                startFrom.format(dateTimeFormatter), endTo.format(dateTimeFormatter)).getBody());
+        if (!offerIfReserved(result, reservation[1])) {
+            reservations.offer(reservation);
+        }
+    }
+
+    private boolean offerIfReserved(String result, String email) {
+        if (result != null && result.matches("\\d+")) {
+            reservations.offer(new String[]{result, email});
+            return true;
+        }
+        return false;
+    }
+
+    private String timed(String endpoint, Supplier<String> call) {
+        long start = System.nanoTime();
+        try {
+            return call.get();
+        } finally {
+            latencies.computeIfAbsent(endpoint, key -> Collections.synchronizedList(new ArrayList<>()))
+                    .add(System.nanoTime() - start);
+        }
+    }
+
+    private double percentile(List<Long> sortedNanos, double percentile) {
+        if (sortedNanos.isEmpty()) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile * sortedNanos.size()) - 1;
+        return sortedNanos.get(Math.max(index, 0)) / 1e6;
+    }
+
+    private int countDoubleBookings() {
+        Map<LocalDate, Long> bookedDays = new HashMap<>();
+        Set<Long> violating = new HashSet<>();
+        for (Reservation reservation : reservationRepository.findAll()) {
+            LocalDate endTo = reservation.getEndTo();
+            for (LocalDate day = reservation.getStartFrom(); !day.isAfter(endTo); day = day.plusDays(1)) {
+                Long other = bookedDays.putIfAbsent(day, reservation.getId());
+                if (other != null) {
+                    violating.add(reservation.getId());
+                }
+            }
+        }
+        return violating.size();
+    }
+}
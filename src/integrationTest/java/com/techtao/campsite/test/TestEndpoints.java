@@ -3,48 +3,68 @@ package com.techtao.campsite.test;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.google.common.cache.Cache;
 import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
 import com.techtao.campsite.Application;
 import com.techtao.campsite.domain.model.DateRange;
+import com.techtao.campsite.domain.model.ReservationRequest;
+import com.techtao.campsite.domain.model.ReservationResult;
+import com.techtao.campsite.domain.model.ReservationTicket;
+import com.techtao.campsite.persistence.entity.IdempotencyRecord;
 import com.techtao.campsite.persistence.entity.Reservation;
+import com.techtao.campsite.persistence.repository.IdempotencyRecordRepository;
 import com.techtao.campsite.persistence.repository.ReservationRepository;
-import org.junit.After;
-import org.junit.Assert;
-import org.junit.Before;
-import org.junit.Test;
+import com.techtao.campsite.service.IdempotencyStore;
+import com.techtao.campsite.service.OccupancyIndex;
+import com.techtao.campsite.service.ReservationPipeline;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
-import org.junit.runner.RunWith;
+import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.http.HttpHeaders;
-import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.util.ReflectionTestUtils;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.test.web.servlet.ResultActions;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
 import org.springframework.web.util.NestedServletException;
 
+import javax.persistence.EntityManagerFactory;
+import javax.sql.DataSource;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDate;
-import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.ThreadLocalRandom;
 
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 @SpringBootTest(classes = {Application.class})
+@TestPropertySource(properties = {"reservation.sites=default,lakeside", "reservation.throttle.enabled=false",
+        "reservation.index.max-staleness-millis=0", "reservation.stream.page-size=1"})
 @AutoConfigureMockMvc
-@RunWith(SpringRunner.class)
 public class TestEndpoints {
     private final static String EXPECTED_ERROR_MESSAGE_INVALID_DATE_RANGE = "The given dates are unavailable:There are reservations already in this date range";
     private final static String EXPECTED_ERROR_MESSAGE_DATE_RANGE_TOO_LONG = "The given dates are unavailable:User could only reserve for maximum 3 days";
@@ -56,13 +76,33 @@ public class TestEndpoints {
     @Autowired
     private ReservationRepository reservationRepository;
 
+    @Autowired
+    private OccupancyIndex occupancyIndex;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    @Autowired
+    private IdempotencyStore idempotencyStore;
+
+    @Autowired
+    private IdempotencyRecordRepository idempotencyRecordRepository;
+
+    @Autowired
+    private ReservationPipeline reservationPipeline;
+
+    @Autowired
+    private DataSource dataSource;
+
+    private JdbcTemplate jdbcTemplate;
+
     private HttpHeaders defaultHttpHeaders;
 
     private ObjectMapper objectMapper;
     private LocalDate currentDate;
     private DateTimeFormatter dateTimeFormatter = DateTimeFormatter.ISO_DATE;
 
-    @Before
+    @BeforeEach
     public void setUp() throws Exception {
         currentDate = LocalDate.now();
 
@@ -72,10 +112,11 @@ public class TestEndpoints {
 
         objectMapper = new ObjectMapper();
         objectMapper.registerModule(new JavaTimeModule());
+        jdbcTemplate = new JdbcTemplate(dataSource);
 
     }
 
-    @After
+    @AfterEach
     public void clean() throws Exception {
         reservationRepository.deleteAll();
     }
@@ -83,6 +124,9 @@ public class TestEndpoints {
     @BeforeEach
     public void init() throws Exception {
         reservationRepository.deleteAll();
+        idempotencyRecordRepository.deleteAll();
+        // The rows of the previous test went without events, start every test from a fresh index
+        occupancyIndex.reload();
     }
 
 
@@ -95,16 +139,72 @@ public class TestEndpoints {
         String results = mockMvc.perform(get("/api/search").params(params)
                 .headers(defaultHttpHeaders)).andExpect(status().isOk())
                 .andReturn().getResponse().getContentAsString();
-        Assert.assertNotNull(results);
+        Assertions.assertNotNull(results);
 
         ArrayList<DateRange> dateRanges = objectMapper.readValue(results, new TypeReference<ArrayList<DateRange>>() {
         });
 
-        Assert.assertNotNull(dateRanges);
-        Assert.assertTrue(dateRanges.size() == 3);
-        Assert.assertTrue(dateRanges.stream().anyMatch(dateRange -> dateRange.endTo.isEqual(currentDate.plusDays(9))));
-        Assert.assertTrue(dateRanges.stream().anyMatch(dateRange -> dateRange.startFrom.isEqual(currentDate.plusDays(11))));
+        Assertions.assertNotNull(dateRanges);
+        Assertions.assertTrue(dateRanges.size() == 3);
+        Assertions.assertTrue(dateRanges.stream().anyMatch(dateRange -> dateRange.endTo.isEqual(currentDate.plusDays(9))));
+        Assertions.assertTrue(dateRanges.stream().anyMatch(dateRange -> dateRange.startFrom.isEqual(currentDate.plusDays(11))));
+
+    }
+
+    @Test
+    public void testGetAvailableDatesNotModified() throws Exception {
+        MultiValueMap<String, String> params = new LinkedMultiValueMap<>();
+        params.set("startFrom", currentDate.plusDays(1).format(dateTimeFormatter));
+        params.set("endTo", currentDate.plusDays(30).format(dateTimeFormatter));
+        String eTag = mockMvc.perform(get("/api/search").params(params)
+                .headers(defaultHttpHeaders)).andExpect(status().isOk())
+                .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+        Assertions.assertNotNull(eTag);
 
+        mockMvc.perform(get("/api/search").params(params).headers(defaultHttpHeaders)
+                .header(HttpHeaders.IF_NONE_MATCH, eTag)).andExpect(status().isNotModified());
+    }
+
+    @Test
+    public void testStreamAvailableDates() throws Exception {
+        prepareData();
+        MultiValueMap<String, String> params = new LinkedMultiValueMap<>();
+        params.set("startFrom", currentDate.plusDays(1).format(dateTimeFormatter));
+        params.set("endTo", currentDate.plusDays(30).format(dateTimeFormatter));
+        MvcResult mvcResult = mockMvc.perform(get("/api/search/stream").params(params))
+                .andExpect(request().asyncStarted()).andReturn();
+        String results = mockMvc.perform(asyncDispatch(mvcResult)).andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+
+        String[] lines = results.split("\n");
+        Assertions.assertEquals(3, lines.length);
+        Assertions.assertTrue(objectMapper.readValue(lines[0], DateRange.class).endTo.isEqual(currentDate.plusDays(9)));
+        Assertions.assertTrue(objectMapper.readValue(lines[1], DateRange.class).startFrom.isEqual(currentDate.plusDays(11)));
+        Assertions.assertTrue(objectMapper.readValue(lines[2], DateRange.class).endTo.isEqual(currentDate.plusDays(30)));
+    }
+
+    @Test
+    public void testSubscribeToAvailabilityChanges() throws Exception {
+        MvcResult subscription = mockMvc.perform(get("/api/search/changes"))
+                .andExpect(request().asyncStarted()).andReturn();
+
+        MultiValueMap<String, String> params = new LinkedMultiValueMap<>();
+        params.set("userName", "Ran");
+        params.set("email", "zeronetao@gmail.com");
+        params.set("startFrom", currentDate.plusDays(5).format(dateTimeFormatter));
+        params.set("endTo", currentDate.plusDays(7).format(dateTimeFormatter));
+        performWrite(put("/api/reserve").params(params).headers(defaultHttpHeaders)).andExpect(status().isOk());
+
+        // The name and the data of an event are written one after the other, wait for the delta itself
+        String booked = "\"booked\":[{\"startFrom\":\"" + currentDate.plusDays(5) + "\"";
+        String events = "";
+        for (int i = 0; i < 100 && !events.contains(booked); i++) {
+            Thread.sleep(20);
+            events = subscription.getResponse().getContentAsString();
+        }
+        Assertions.assertTrue(events.contains("event:availability"));
+        Assertions.assertTrue(events.contains(booked));
+        Assertions.assertTrue(events.contains("\"freed\":[]"));
     }
 
     @Test
@@ -114,18 +214,208 @@ public class TestEndpoints {
         params.set("email", "zeronetao@gmail.com");
         params.set("startFrom", currentDate.plusDays(5).format(dateTimeFormatter));
         params.set("endTo", currentDate.plusDays(7).format(dateTimeFormatter));
-        String result = mockMvc.perform(put("/api/reserve").params(params)
+        String result = performWrite(put("/api/reserve").params(params)
                 .headers(defaultHttpHeaders)).andExpect(status().isOk())
                 .andReturn().getResponse().getContentAsString();
 
-        Assert.assertNotNull(result);
+        Assertions.assertNotNull(result);
         Optional<Reservation> reservation = reservationRepository.findById(Long.parseLong(result));
-        Assert.assertTrue(reservation.isPresent());
-        Assert.assertTrue(reservation.get().getUsername().equals("Ran"));
-        Assert.assertEquals(currentDate.plusDays(5).atStartOfDay(ZoneId.systemDefault()).toInstant(),
-                reservation.get().getStartFrom().toInstant());
-        Assert.assertEquals(currentDate.plusDays(7).atStartOfDay(ZoneId.systemDefault()).toInstant(),
-                reservation.get().getEndTo().toInstant());
+        Assertions.assertTrue(reservation.isPresent());
+        Assertions.assertTrue(reservation.get().getUsername().equals("Ran"));
+        Assertions.assertEquals(currentDate.plusDays(5), reservation.get().getStartFrom());
+        Assertions.assertEquals(currentDate.plusDays(7), reservation.get().getEndTo());
+    }
+
+    @Test
+    public void testRetryAReservationWithAnIdempotencyKey() throws Exception {
+        MultiValueMap<String, String> params = new LinkedMultiValueMap<>();
+        params.set("userName", "Ran");
+        params.set("email", "zeronetao@gmail.com");
+        params.set("startFrom", currentDate.plusDays(5).format(dateTimeFormatter));
+        params.set("endTo", currentDate.plusDays(7).format(dateTimeFormatter));
+        String first = performWrite(put("/api/reserve").params(params).headers(defaultHttpHeaders)
+                .header("Idempotency-Key", "retry-1")).andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+        String retry = performWrite(put("/api/reserve").params(params).headers(defaultHttpHeaders)
+                .header("Idempotency-Key", "retry-1")).andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+
+        Assertions.assertEquals(first, retry);
+        Assertions.assertEquals(1, reservationRepository.count());
+        Assertions.assertEquals(first, idempotencyRecordRepository.findAll().get(0).getResult());
+
+        // Another instance only knows the key from the table
+        ((Map<?, ?>) ReflectionTestUtils.getField(idempotencyStore, "outcomes")).clear();
+        String elsewhere = performWrite(put("/api/reserve").params(params).headers(defaultHttpHeaders)
+                .header("Idempotency-Key", "retry-1")).andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+
+        Assertions.assertEquals(first, elsewhere);
+        Assertions.assertEquals(1, reservationRepository.count());
+    }
+
+    @Test
+    public void testTakeOverTheClaimOfACrashedInstance() throws Exception {
+        // Claimed two minutes ago by an instance which never wrote the outcome
+        String key = Hashing.sha256().hashString("reserve/default/crashed-1", StandardCharsets.UTF_8).toString();
+        idempotencyRecordRepository.save(new IdempotencyRecord(key, "unknown", System.currentTimeMillis() - 120_000));
+
+        MultiValueMap<String, String> params = new LinkedMultiValueMap<>();
+        params.set("userName", "Ran");
+        params.set("email", "zeronetao@gmail.com");
+        params.set("startFrom", currentDate.plusDays(5).format(dateTimeFormatter));
+        params.set("endTo", currentDate.plusDays(7).format(dateTimeFormatter));
+        String result = performWrite(put("/api/reserve").params(params).headers(defaultHttpHeaders)
+                .header("Idempotency-Key", "crashed-1")).andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+
+        Assertions.assertEquals(String.valueOf(reservationRepository.findAll().get(0).getId()), result);
+        Assertions.assertEquals(result, idempotencyRecordRepository.findById(key).get().getResult());
+    }
+
+    @Test
+    public void testRefuseAnIdempotencyKeyReusedForAnotherRequest() throws Exception {
+        MultiValueMap<String, String> params = new LinkedMultiValueMap<>();
+        params.set("userName", "Ran");
+        params.set("email", "zeronetao@gmail.com");
+        params.set("startFrom", currentDate.plusDays(5).format(dateTimeFormatter));
+        params.set("endTo", currentDate.plusDays(7).format(dateTimeFormatter));
+        performWrite(put("/api/reserve").params(params).headers(defaultHttpHeaders)
+                .header("Idempotency-Key", "reused-1")).andExpect(status().isOk());
+
+        params.set("startFrom", currentDate.plusDays(10).format(dateTimeFormatter));
+        params.set("endTo", currentDate.plusDays(10).format(dateTimeFormatter));
+        performWrite(put("/api/reserve").params(params).headers(defaultHttpHeaders)
+                .header("Idempotency-Key", "reused-1")).andExpect(status().isUnprocessableEntity());
+
+        Assertions.assertEquals(1, reservationRepository.count());
+    }
+
+    @Test
+    public void testReserveTheSameDatesOnTwoSites() throws Exception {
+        prepareData();
+        MultiValueMap<String, String> params = new LinkedMultiValueMap<>();
+        params.set("userName", "Ran");
+        params.set("email", "zeronetao@gmail.com");
+        params.set("startFrom", currentDate.plusDays(9).format(dateTimeFormatter));
+        params.set("endTo", currentDate.plusDays(11).format(dateTimeFormatter));
+        String result = performWrite(put("/api/sites/lakeside/reserve").params(params)
+                .headers(defaultHttpHeaders)).andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+
+        Optional<Reservation> reservation = reservationRepository.findById(Long.parseLong(result));
+        Assertions.assertTrue(reservation.isPresent());
+        Assertions.assertEquals("lakeside", reservation.get().getSiteId());
+
+        result = performWrite(put("/api/reserve").params(params)
+                .headers(defaultHttpHeaders)).andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+        Assertions.assertEquals(EXPECTED_ERROR_MESSAGE_INVALID_DATE_RANGE, result);
+
+        params = new LinkedMultiValueMap<>();
+        params.set("startFrom", currentDate.plusDays(1).format(dateTimeFormatter));
+        params.set("endTo", currentDate.plusDays(30).format(dateTimeFormatter));
+        String results = mockMvc.perform(get("/api/sites/lakeside/search").params(params)
+                .headers(defaultHttpHeaders)).andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+        ArrayList<DateRange> dateRanges = objectMapper.readValue(results, new TypeReference<ArrayList<DateRange>>() {
+        });
+        Assertions.assertEquals(2, dateRanges.size());
+        Assertions.assertTrue(dateRanges.get(0).endTo.isEqual(currentDate.plusDays(8)));
+        Assertions.assertTrue(dateRanges.get(1).startFrom.isEqual(currentDate.plusDays(12)));
+    }
+
+    @Test
+    public void testSearchAnUnknownSite() {
+        Assertions.assertThrows(NestedServletException.class, () -> {
+            mockMvc.perform(get("/api/sites/unknown/search").headers(defaultHttpHeaders));
+        });
+    }
+
+    @Test
+    public void testReserveABatch() throws Exception {
+        prepareData();
+        List<ReservationRequest> requests = Arrays.asList(
+                new ReservationRequest("Ran", "zeronetao@gmail.com", currentDate.plusDays(5), currentDate.plusDays(7)),
+                new ReservationRequest("Tao", "tao@gmail.com", currentDate.plusDays(7), currentDate.plusDays(8)),
+                new ReservationRequest("Test", "test@gmail.com", currentDate.plusDays(10), currentDate.plusDays(11)),
+                new ReservationRequest("Other", "other@gmail.com", currentDate.plusDays(12), currentDate.plusDays(13)));
+        String result = performWrite(put("/api/reserve/batch").headers(defaultHttpHeaders)
+                .content(objectMapper.writeValueAsString(requests))).andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+
+        List<ReservationResult> results = objectMapper.readValue(result, new TypeReference<List<ReservationResult>>() {
+        });
+        Assertions.assertEquals(4, results.size());
+        Assertions.assertTrue(results.get(0).isReserved());
+        Assertions.assertFalse(results.get(1).isReserved());
+        Assertions.assertEquals(EXPECTED_ERROR_MESSAGE_INVALID_DATE_RANGE, results.get(1).getErrorMessage());
+        Assertions.assertFalse(results.get(2).isReserved());
+        Assertions.assertTrue(results.get(3).isReserved());
+        Assertions.assertTrue(reservationRepository.findById(Long.parseLong(results.get(3).getReservationId())).isPresent());
+    }
+
+    @Test
+    public void testReserveABatchInOneJdbcBatch() throws Exception {
+        List<ReservationRequest> requests = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            requests.add(new ReservationRequest("Ran", "zeronetao@gmail.com", currentDate.plusDays(5 + 2 * i),
+                    currentDate.plusDays(5 + 2 * i)));
+        }
+        Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+        statistics.clear();
+        performWrite(put("/api/reserve/batch").headers(defaultHttpHeaders)
+                .content(objectMapper.writeValueAsString(requests))).andExpect(status().isOk());
+
+        // The conflict query and one insert for the whole batch, not one insert per reservation
+        Assertions.assertEquals(10, statistics.getEntityInsertCount());
+        Assertions.assertTrue(statistics.getPrepareStatementCount() <= 3);
+    }
+
+    @Test
+    public void testReserveABatchTooBig() throws Exception {
+        List<ReservationRequest> requests = new ArrayList<>();
+        for (int i = 0; i <= 50; i++) {
+            requests.add(new ReservationRequest("Ran", "zeronetao@gmail.com", currentDate.plusDays(5),
+                    currentDate.plusDays(5)));
+        }
+        performWrite(put("/api/reserve/batch").headers(defaultHttpHeaders)
+                .content(objectMapper.writeValueAsString(requests))).andExpect(status().isBadRequest());
+        Assertions.assertEquals(0, reservationRepository.count());
+    }
+
+    @Test
+    public void testSubmitAReservationAndCheckTheStatus() throws Exception {
+        MultiValueMap<String, String> params = new LinkedMultiValueMap<>();
+        params.set("userName", "Ran");
+        params.set("email", "zeronetao@gmail.com");
+        params.set("startFrom", currentDate.plusDays(5).format(dateTimeFormatter));
+        params.set("endTo", currentDate.plusDays(7).format(dateTimeFormatter));
+        String token = mockMvc.perform(put("/api/reserve/submit").params(params)
+                .headers(defaultHttpHeaders)).andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+        Assertions.assertNotNull(token);
+
+        ReservationTicket ticket;
+        do {
+            Thread.sleep(50);
+            String result = mockMvc.perform(get("/api/reserve/status/" + token)
+                    .headers(defaultHttpHeaders)).andExpect(status().isOk())
+                    .andReturn().getResponse().getContentAsString();
+            ticket = objectMapper.readValue(result, ReservationTicket.class);
+        } while (ticket.getStatus() == ReservationTicket.Status.PENDING);
+
+        Assertions.assertEquals(ReservationTicket.Status.RESERVED, ticket.getStatus());
+        Assertions.assertTrue(reservationRepository.findById(Long.parseLong(ticket.getReservationId())).isPresent());
+
+        // Another instance only knows the ticket from the table
+        ((Cache<?, ?>) ReflectionTestUtils.getField(reservationPipeline, "tickets")).invalidateAll();
+        String result = mockMvc.perform(get("/api/reserve/status/" + token)
+                .headers(defaultHttpHeaders)).andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+        Assertions.assertEquals(ticket, objectMapper.readValue(result, ReservationTicket.class));
+        mockMvc.perform(get("/api/reserve/status/unknown").headers(defaultHttpHeaders))
+                .andExpect(status().isNotFound());
     }
 
     @Test
@@ -137,19 +427,70 @@ public class TestEndpoints {
         params.set("email", reservation.getEmail());
         params.set("startFrom", currentDate.plusDays(5).format(dateTimeFormatter));
         params.set("endTo", currentDate.plusDays(7).format(dateTimeFormatter));
-        String result = mockMvc.perform(put("/api/update/" + String.valueOf(reservation.getId())).params(params)
+        String result = performWrite(put("/api/update/" + String.valueOf(reservation.getId())).params(params)
                 .headers(defaultHttpHeaders)).andExpect(status().isOk())
                 .andReturn().getResponse().getContentAsString();
 
-        Assert.assertNotNull(result);
-        Optional<Reservation> oldReservation = reservationRepository.findById(reservation.getId());
-        Optional<Reservation> newReservation = reservationRepository.findById(Long.parseLong(result));
-        Assert.assertFalse(oldReservation.isPresent());
-        Assert.assertTrue(newReservation.isPresent());
-        Assert.assertEquals(currentDate.plusDays(5).atStartOfDay(ZoneId.systemDefault()).toInstant(),
-                newReservation.get().getStartFrom().toInstant());
-        Assert.assertEquals(currentDate.plusDays(7).atStartOfDay(ZoneId.systemDefault()).toInstant(),
-                newReservation.get().getEndTo().toInstant());
+        Assertions.assertEquals(String.valueOf(reservation.getId()), result);
+        Optional<Reservation> updatedReservation = reservationRepository.findById(reservation.getId());
+        Assertions.assertTrue(updatedReservation.isPresent());
+        Assertions.assertEquals(reservation.getVersion() + 1, updatedReservation.get().getVersion());
+        Assertions.assertEquals(currentDate.plusDays(5), updatedReservation.get().getStartFrom());
+        Assertions.assertEquals(currentDate.plusDays(7), updatedReservation.get().getEndTo());
+    }
+
+    @Test
+    public void testUpdateAndCancelAReservationChangedByAnotherInstance() throws Exception {
+        prepareData();
+        Reservation reservation = reservationRepository.findAll().get(0);
+        // Cached here, then changed the way another instance would, behind the cache
+        reservationRepository.findByIdAndSiteIdAndEmail(reservation.getId(), reservation.getSiteId(),
+                reservation.getEmail());
+        jdbcTemplate.update("update reservation set version = version + 1 where id = ?", reservation.getId());
+
+        MultiValueMap<String, String> params = new LinkedMultiValueMap<>();
+        params.set("email", reservation.getEmail());
+        params.set("startFrom", currentDate.plusDays(5).format(dateTimeFormatter));
+        params.set("endTo", currentDate.plusDays(7).format(dateTimeFormatter));
+        String result = performWrite(put("/api/update/" + String.valueOf(reservation.getId())).params(params)
+                .headers(defaultHttpHeaders)).andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+
+        Assertions.assertEquals(String.valueOf(reservation.getId()), result);
+        Assertions.assertEquals(reservation.getVersion() + 2,
+                reservationRepository.findById(reservation.getId()).get().getVersion());
+
+        reservationRepository.findByIdAndSiteIdAndEmail(reservation.getId(), reservation.getSiteId(),
+                reservation.getEmail());
+        jdbcTemplate.update("update reservation set version = version + 1 where id = ?", reservation.getId());
+        params.remove("startFrom");
+        params.remove("endTo");
+        result = performWrite(delete("/api/cancel/" + String.valueOf(reservation.getId())).params(params)
+                .headers(defaultHttpHeaders)).andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+
+        Assertions.assertEquals("SUCCESS", result);
+        Assertions.assertFalse(reservationRepository.findById(reservation.getId()).isPresent());
+    }
+
+    @Test
+    public void testUpdateAReservationOverItsOwnDates() throws Exception {
+        prepareData();
+        Reservation reservation = reservationRepository.findAll().stream()
+                .filter(existing -> existing.getUsername().equals("test2")).findFirst().get();
+
+        MultiValueMap<String, String> params = new LinkedMultiValueMap<>();
+        params.set("email", reservation.getEmail());
+        params.set("startFrom", currentDate.plusDays(21).format(dateTimeFormatter));
+        params.set("endTo", currentDate.plusDays(23).format(dateTimeFormatter));
+        String result = performWrite(put("/api/update/" + String.valueOf(reservation.getId())).params(params)
+                .headers(defaultHttpHeaders)).andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+
+        Assertions.assertEquals(String.valueOf(reservation.getId()), result);
+        Assertions.assertEquals(2, reservationRepository.count());
+        Assertions.assertEquals(currentDate.plusDays(23),
+                reservationRepository.findById(reservation.getId()).get().getEndTo());
     }
 
     @Test
@@ -161,14 +502,14 @@ public class TestEndpoints {
         params.set("email", reservation.getEmail());
         params.set("startFrom", currentDate.plusDays(5).format(dateTimeFormatter));
         params.set("endTo", currentDate.plusDays(10).format(dateTimeFormatter));
-        String result = mockMvc.perform(put("/api/update/" + String.valueOf(reservation.getId())).params(params)
+        String result = performWrite(put("/api/update/" + String.valueOf(reservation.getId())).params(params)
                 .headers(defaultHttpHeaders)).andExpect(status().isOk())
                 .andReturn().getResponse().getContentAsString();
 
-        Assert.assertNotNull(result);
-        Assert.assertEquals(EXPECTED_ERROR_MESSAGE_DATE_RANGE_TOO_LONG, result);
+        Assertions.assertNotNull(result);
+        Assertions.assertEquals(EXPECTED_ERROR_MESSAGE_DATE_RANGE_TOO_LONG, result);
         Optional<Reservation> oldReservation = reservationRepository.findById(reservation.getId());
-        Assert.assertTrue(oldReservation.isPresent());
+        Assertions.assertTrue(oldReservation.isPresent());
     }
 
     @Test
@@ -179,18 +520,41 @@ public class TestEndpoints {
 
         MultiValueMap<String, String> params = new LinkedMultiValueMap<>();
         params.set("email", reservation1.getEmail());
-        params.set("startFrom", reservation2.getStartFrom().toInstant().atZone(ZoneId.systemDefault()).toLocalDate()
-                .plusDays(1).format(dateTimeFormatter));
-        params.set("endTo", reservation2.getEndTo().toInstant().atZone(ZoneId.systemDefault()).toLocalDate()
-                .plusDays(1).format(dateTimeFormatter));
-        String result = mockMvc.perform(put("/api/update/" + String.valueOf(reservation1.getId())).params(params)
+        params.set("startFrom", reservation2.getStartFrom().plusDays(1).format(dateTimeFormatter));
+        params.set("endTo", reservation2.getEndTo().plusDays(1).format(dateTimeFormatter));
+        String result = performWrite(put("/api/update/" + String.valueOf(reservation1.getId())).params(params)
                 .headers(defaultHttpHeaders)).andExpect(status().isOk())
                 .andReturn().getResponse().getContentAsString();
 
-        Assert.assertNotNull(result);
-        Assert.assertEquals(EXPECTED_ERROR_MESSAGE_INVALID_DATE_RANGE, result);
+        Assertions.assertNotNull(result);
+        Assertions.assertEquals(EXPECTED_ERROR_MESSAGE_INVALID_DATE_RANGE, result);
         Optional<Reservation> oldReservation = reservationRepository.findById(reservation1.getId());
-        Assert.assertTrue(oldReservation.isPresent());
+        Assertions.assertTrue(oldReservation.isPresent());
+    }
+
+    @Test
+    public void testLocalWritesKeepTheIndexFresh() throws Exception {
+        MultiValueMap<String, String> params = new LinkedMultiValueMap<>();
+        params.set("userName", "Ran");
+        params.set("email", "zeronetao@gmail.com");
+        params.set("startFrom", currentDate.plusDays(5).format(dateTimeFormatter));
+        params.set("endTo", currentDate.plusDays(7).format(dateTimeFormatter));
+        String id = performWrite(put("/api/reserve").params(params).headers(defaultHttpHeaders))
+                .andExpect(status().isOk()).andReturn().getResponse().getContentAsString();
+        assertIndexFresh();
+
+        params.remove("userName");
+        params.set("startFrom", currentDate.plusDays(6).format(dateTimeFormatter));
+        params.set("endTo", currentDate.plusDays(8).format(dateTimeFormatter));
+        performWrite(put("/api/update/" + id).params(params).headers(defaultHttpHeaders))
+                .andExpect(status().isOk());
+        assertIndexFresh();
+
+        params.remove("startFrom");
+        params.remove("endTo");
+        performWrite(delete("/api/cancel/" + id).params(params).headers(defaultHttpHeaders))
+                .andExpect(status().isOk());
+        assertIndexFresh();
     }
 
     @Test
@@ -200,12 +564,12 @@ public class TestEndpoints {
 
         MultiValueMap<String, String> params = new LinkedMultiValueMap<>();
         params.set("email", reservation1.getEmail());
-        mockMvc.perform(delete("/api/cancel/" + String.valueOf(reservation1.getId())).params(params)
+        performWrite(delete("/api/cancel/" + String.valueOf(reservation1.getId())).params(params)
                 .headers(defaultHttpHeaders)).andExpect(status().isOk())
                 .andReturn().getResponse().getContentAsString();
 
         Optional<Reservation> oldReservation = reservationRepository.findById(reservation1.getId());
-        Assert.assertFalse(oldReservation.isPresent());
+        Assertions.assertFalse(oldReservation.isPresent());
     }
 
     @Test
@@ -216,39 +580,39 @@ public class TestEndpoints {
         params.set("email", "zeronetao@gmail.com");
         params.set("startFrom", currentDate.plusDays(9).format(dateTimeFormatter));
         params.set("endTo", currentDate.plusDays(11).format(dateTimeFormatter));
-        String result = mockMvc.perform(put("/api/reserve").params(params)
+        String result = performWrite(put("/api/reserve").params(params)
                 .headers(defaultHttpHeaders)).andExpect(status().isOk())
                 .andReturn().getResponse().getContentAsString();
 
-        Assert.assertNotNull(result);
-        Assert.assertEquals(EXPECTED_ERROR_MESSAGE_INVALID_DATE_RANGE, result);
+        Assertions.assertNotNull(result);
+        Assertions.assertEquals(EXPECTED_ERROR_MESSAGE_INVALID_DATE_RANGE, result);
 
         params.set("startFrom", currentDate.plusDays(8).format(dateTimeFormatter));
         params.set("endTo", currentDate.plusDays(10).format(dateTimeFormatter));
-        result = mockMvc.perform(put("/api/reserve").params(params)
+        result = performWrite(put("/api/reserve").params(params)
                 .headers(defaultHttpHeaders)).andExpect(status().isOk())
                 .andReturn().getResponse().getContentAsString();
 
-        Assert.assertNotNull(result);
-        Assert.assertEquals(EXPECTED_ERROR_MESSAGE_INVALID_DATE_RANGE, result);
+        Assertions.assertNotNull(result);
+        Assertions.assertEquals(EXPECTED_ERROR_MESSAGE_INVALID_DATE_RANGE, result);
 
         params.set("startFrom", currentDate.plusDays(10).format(dateTimeFormatter));
         params.set("endTo", currentDate.plusDays(12).format(dateTimeFormatter));
-        result = mockMvc.perform(put("/api/reserve").params(params)
+        result = performWrite(put("/api/reserve").params(params)
                 .headers(defaultHttpHeaders)).andExpect(status().isOk())
                 .andReturn().getResponse().getContentAsString();
 
-        Assert.assertNotNull(result);
-        Assert.assertEquals(EXPECTED_ERROR_MESSAGE_INVALID_DATE_RANGE, result);
+        Assertions.assertNotNull(result);
+        Assertions.assertEquals(EXPECTED_ERROR_MESSAGE_INVALID_DATE_RANGE, result);
 
         params.set("startFrom", currentDate.plusDays(10).format(dateTimeFormatter));
         params.set("endTo", currentDate.plusDays(10).format(dateTimeFormatter));
-        result = mockMvc.perform(put("/api/reserve").params(params)
+        result = performWrite(put("/api/reserve").params(params)
                 .headers(defaultHttpHeaders)).andExpect(status().isOk())
                 .andReturn().getResponse().getContentAsString();
 
-        Assert.assertNotNull(result);
-        Assert.assertEquals(EXPECTED_ERROR_MESSAGE_INVALID_DATE_RANGE, result);
+        Assertions.assertNotNull(result);
+        Assertions.assertEquals(EXPECTED_ERROR_MESSAGE_INVALID_DATE_RANGE, result);
 
     }
 
@@ -259,50 +623,56 @@ public class TestEndpoints {
         params.set("email", "zeronetao@gmail.com");
         params.set("startFrom", currentDate.plusDays(9).format(dateTimeFormatter));
         params.set("endTo", currentDate.plusDays(12).format(dateTimeFormatter));
-        String result = mockMvc.perform(put("/api/reserve").params(params)
+        String result = performWrite(put("/api/reserve").params(params)
                 .headers(defaultHttpHeaders)).andExpect(status().isOk())
                 .andReturn().getResponse().getContentAsString();
 
-        Assert.assertNotNull(result);
-        Assert.assertEquals(EXPECTED_ERROR_MESSAGE_DATE_RANGE_TOO_LONG, result);
+        Assertions.assertNotNull(result);
+        Assertions.assertEquals(EXPECTED_ERROR_MESSAGE_DATE_RANGE_TOO_LONG, result);
     }
 
     // Have no time to implement my own ExceptionHandler which then we could expect IllegalArgumentException here
-    @Test(expected = NestedServletException.class)
-    public void testAddAReservationMoreThanAMonth() throws Exception {
-        MultiValueMap<String, String> params = new LinkedMultiValueMap<>();
-        params.set("userName", "Ran");
-        params.set("email", "zeronetao@gmail.com");
-        params.set("startFrom", currentDate.plusDays(60).format(dateTimeFormatter));
-        params.set("endTo", currentDate.plusDays(61).format(dateTimeFormatter));
-        mockMvc.perform(put("/api/reserve").params(params)
-                .headers(defaultHttpHeaders)).andExpect(status().isOk())
-                .andReturn().getResponse().getContentAsString();
+    @Test
+    public void testAddAReservationMoreThanAMonth() {
+        Assertions.assertThrows(NestedServletException.class, () -> {
+            MultiValueMap<String, String> params = new LinkedMultiValueMap<>();
+            params.set("userName", "Ran");
+            params.set("email", "zeronetao@gmail.com");
+            params.set("startFrom", currentDate.plusDays(60).format(dateTimeFormatter));
+            params.set("endTo", currentDate.plusDays(61).format(dateTimeFormatter));
+            performWrite(put("/api/reserve").params(params)
+                    .headers(defaultHttpHeaders)).andExpect(status().isOk())
+                    .andReturn().getResponse().getContentAsString();
+        });
     }
 
-    @Test(expected = NestedServletException.class)
-    public void testAddAReservationOnToday() throws Exception {
-        MultiValueMap<String, String> params = new LinkedMultiValueMap<>();
-        params.set("userName", "Ran");
-        params.set("email", "zeronetao@gmail.com");
-        params.set("startFrom", currentDate.format(dateTimeFormatter));
-        params.set("endTo", currentDate.plusDays(2).format(dateTimeFormatter));
-        mockMvc.perform(put("/api/reserve").params(params)
-                .headers(defaultHttpHeaders)).andExpect(status().isOk())
-                .andReturn().getResponse().getContentAsString();
+    @Test
+    public void testAddAReservationOnToday() {
+        Assertions.assertThrows(NestedServletException.class, () -> {
+            MultiValueMap<String, String> params = new LinkedMultiValueMap<>();
+            params.set("userName", "Ran");
+            params.set("email", "zeronetao@gmail.com");
+            params.set("startFrom", currentDate.format(dateTimeFormatter));
+            params.set("endTo", currentDate.plusDays(2).format(dateTimeFormatter));
+            performWrite(put("/api/reserve").params(params)
+                    .headers(defaultHttpHeaders)).andExpect(status().isOk())
+                    .andReturn().getResponse().getContentAsString();
+        });
     }
 
-    @Test(expected = NestedServletException.class)
-    public void testAddAReservationWithInvalidRange() throws Exception {
-        prepareData();
-        MultiValueMap<String, String> params = new LinkedMultiValueMap<>();
-        params.set("userName", "Ran");
-        params.set("email", "zeronetao@gmail.com");
-        params.set("startFrom", currentDate.plusDays(5).format(dateTimeFormatter));
-        params.set("endTo", currentDate.plusDays(3).format(dateTimeFormatter));
-        mockMvc.perform(put("/api/reserve").params(params)
-                .headers(defaultHttpHeaders)).andExpect(status().isOk())
-                .andReturn().getResponse().getContentAsString();
+    @Test
+    public void testAddAReservationWithInvalidRange() {
+        Assertions.assertThrows(NestedServletException.class, () -> {
+            prepareData();
+            MultiValueMap<String, String> params = new LinkedMultiValueMap<>();
+            params.set("userName", "Ran");
+            params.set("email", "zeronetao@gmail.com");
+            params.set("startFrom", currentDate.plusDays(5).format(dateTimeFormatter));
+            params.set("endTo", currentDate.plusDays(3).format(dateTimeFormatter));
+            performWrite(put("/api/reserve").params(params)
+                    .headers(defaultHttpHeaders)).andExpect(status().isOk())
+                    .andReturn().getResponse().getContentAsString();
+        });
     }
 
     @Test
@@ -320,7 +690,7 @@ public class TestEndpoints {
                 params.set("startFrom", currentDate.plusDays(randomNum).format(dateTimeFormatter));
                 params.set("endTo", currentDate.plusDays(randomNum + 2).format(dateTimeFormatter));
                 try {
-                    return mockMvc.perform(put("/api/reserve").params(params)
+                    return performWrite(put("/api/reserve").params(params)
                             .headers(defaultHttpHeaders)).andExpect(status().isOk())
                             .andReturn().getResponse().getContentAsString();
                 } catch (Exception e) {
@@ -330,7 +700,7 @@ public class TestEndpoints {
         }
 
         CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
-        Assert.assertNotNull(results);
+        Assertions.assertNotNull(results);
 
         MultiValueMap<String, String> params = new LinkedMultiValueMap<>();
         params.set("startFrom", currentDate.plusDays(1).format(dateTimeFormatter));
@@ -338,26 +708,38 @@ public class TestEndpoints {
         String searchResults = mockMvc.perform(get("/api/search").params(params)
                 .headers(defaultHttpHeaders)).andExpect(status().isOk())
                 .andReturn().getResponse().getContentAsString();
-        Assert.assertNotNull(searchResults);
+        Assertions.assertNotNull(searchResults);
 
         ArrayList<DateRange> dateRanges = objectMapper.readValue(searchResults, new TypeReference<ArrayList<DateRange>>() {
         });
 
-        Assert.assertNotNull(dateRanges);
+        Assertions.assertNotNull(dateRanges);
+
+    }
+
+    // The writes answer asynchronously, the response is only there once dispatched back
+    private ResultActions performWrite(RequestBuilder requestBuilder) throws Exception {
+        MvcResult mvcResult = mockMvc.perform(requestBuilder).andExpect(request().asyncStarted()).andReturn();
+        return mockMvc.perform(asyncDispatch(mvcResult));
+    }
 
+    // The index compares the marks on every call here, a local write must not look like a foreign one
+    private void assertIndexFresh() {
+        Assertions.assertTrue(occupancyIndex.isFresh());
+        Assertions.assertEquals(reservationRepository.findWatermark(), occupancyIndex.getWatermark());
     }
 
     private void prepareData() {
         Reservation reservation1 = new Reservation();
         reservation1.setUsername("test1");
         reservation1.setEmail("test1@test.com");
-        reservation1.setStartFrom(Date.from(currentDate.plusDays(10).atStartOfDay(ZoneId.systemDefault()).toInstant()));
-        reservation1.setEndTo(Date.from(currentDate.plusDays(10).atStartOfDay(ZoneId.systemDefault()).toInstant()));
+        reservation1.setStartFrom(currentDate.plusDays(10));
+        reservation1.setEndTo(currentDate.plusDays(10));
         Reservation reservation2 = new Reservation();
         reservation2.setUsername("test2");
         reservation2.setEmail("test2@test.com");
-        reservation2.setStartFrom(Date.from(currentDate.plusDays(20).atStartOfDay(ZoneId.systemDefault()).toInstant()));
-        reservation2.setEndTo(Date.from(currentDate.plusDays(22).atStartOfDay(ZoneId.systemDefault()).toInstant()));
+        reservation2.setStartFrom(currentDate.plusDays(20));
+        reservation2.setEndTo(currentDate.plusDays(22));
         reservationRepository.saveAll(Arrays.asList(reservation1, reservation2));
     }
 }
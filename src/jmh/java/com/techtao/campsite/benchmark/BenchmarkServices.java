@@ -0,0 +1,98 @@
+package com.techtao.campsite.benchmark;
+
+import com.techtao.campsite.domain.event.ReservationChangedEvent;
+import com.techtao.campsite.domain.validator.DateRangeValidator;
+import com.techtao.campsite.metrics.ReservationMetrics;
+import com.techtao.campsite.persistence.repository.ReservationRepository;
+import com.techtao.campsite.service.CommitMode;
+import com.techtao.campsite.service.GroupCommitter;
+import com.techtao.campsite.service.OccupancyIndex;
+import com.techtao.campsite.service.ReplicationLagGuard;
+import com.techtao.campsite.service.ReservationServiceImpl;
+import com.techtao.campsite.service.lock.DayLocks;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.AbstractPlatformTransactionManager;
+import org.springframework.transaction.support.DefaultTransactionStatus;
+
+/**
+ * Wires a {@link ReservationServiceImpl} by hand, without a Spring context and with a transaction manager which
+ * does nothing.
+ *
+ * @author rantao
+ */
+public final class BenchmarkServices {
+
+    private BenchmarkServices() {
+    }
+
+    /**
+     * Build a reservation service on top of the given repository.
+     *
+     * @param reservationRepository the repository to read and write
+     * @param loadIndex whether the occupancy index is loaded, when not every search goes to the repository
+     * @return the service
+     */
+    public static ReservationServiceImpl reservationService(ReservationRepository reservationRepository,
+                                                            boolean loadIndex) {
+        ReservationMetrics reservationMetrics = new ReservationMetrics();
+        ReflectionTestUtils.setField(reservationMetrics, "meterRegistry", new SimpleMeterRegistry());
+
+        OccupancyIndex occupancyIndex = new OccupancyIndex();
+        ReflectionTestUtils.setField(occupancyIndex, "reservationRepository", reservationRepository);
+        occupancyIndex.start();
+        if (loadIndex) {
+            occupancyIndex.load();
+        }
+
+        DayLocks dayLocks = new DayLocks();
+        ReflectionTestUtils.setField(dayLocks, "reservationMetrics", reservationMetrics);
+
+        ReplicationLagGuard replicationLagGuard = new ReplicationLagGuard();
+        ReflectionTestUtils.setField(replicationLagGuard, "lagGuardMillis", 5000L);
+        ReflectionTestUtils.setField(replicationLagGuard, "lagGuardSize", 100000L);
+        replicationLagGuard.init();
+
+        ApplicationEventPublisher eventPublisher = event -> {
+            if (event instanceof ReservationChangedEvent) {
+                occupancyIndex.onReservationChanged((ReservationChangedEvent) event);
+            }
+        };
+
+        ReservationServiceImpl reservationService = new ReservationServiceImpl();
+        ReflectionTestUtils.setField(reservationService, "reservationRepository", reservationRepository);
+        ReflectionTestUtils.setField(reservationService, "dateRangeValidator", new DateRangeValidator());
+        ReflectionTestUtils.setField(reservationService, "occupancyIndex", occupancyIndex);
+        ReflectionTestUtils.setField(reservationService, "eventPublisher", eventPublisher);
+        ReflectionTestUtils.setField(reservationService, "reservationCoordinator", dayLocks);
+        ReflectionTestUtils.setField(reservationService, "replicationLagGuard", replicationLagGuard);
+        ReflectionTestUtils.setField(reservationService, "reservationMetrics", reservationMetrics);
+        ReflectionTestUtils.setField(reservationService, "commitMode", CommitMode.LOCK);
+        ReflectionTestUtils.setField(reservationService, "groupCommitter", new GroupCommitter());
+        ReflectionTestUtils.setField(reservationService, "transactionManager", new NoOpTransactionManager());
+        reservationService.init();
+        return reservationService;
+    }
+
+    private static class NoOpTransactionManager extends AbstractPlatformTransactionManager {
+
+        @Override
+        protected Object doGetTransaction() {
+            return new Object();
+        }
+
+        @Override
+        protected void doBegin(Object transaction, TransactionDefinition definition) {
+        }
+
+        @Override
+        protected void doCommit(DefaultTransactionStatus status) {
+        }
+
+        @Override
+        protected void doRollback(DefaultTransactionStatus status) {
+        }
+    }
+}
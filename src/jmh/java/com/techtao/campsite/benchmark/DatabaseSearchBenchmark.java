@@ -0,0 +1,101 @@
+package com.techtao.campsite.benchmark;
+
+import com.techtao.campsite.Application;
+import com.techtao.campsite.domain.model.DateRange;
+import com.techtao.campsite.domain.model.Sites;
+import com.techtao.campsite.persistence.entity.Reservation;
+import com.techtao.campsite.persistence.repository.ReservationRepository;
+import com.techtao.campsite.service.OccupancyIndex;
+import com.techtao.campsite.service.ReservationService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the searches the occupancy index cannot answer against an in-memory H2 database, once loading and walking
+ * the reservation entities and once letting the database compute the gaps. The second level and query caches are off,
+ * so every call reaches the database.
+ *
+ * @author rantao
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DatabaseSearchBenchmark {
+
+    @Param({"entity", "sql"})
+    private String searchEngine;
+
+    @Param({"100", "1000", "10000"})
+    private int reservationCount;
+
+    private ConfigurableApplicationContext context;
+    private ReservationService reservationService;
+    private LocalDate startFrom;
+    private LocalDate endTo;
+
+    @Setup
+    public void setUp() {
+        context = SpringApplication.run(Application.class,
+                "--server.port=0",
+                "--database.driverClassName=org.h2.Driver",
+                "--database.url=jdbc:h2:mem:benchmark;MODE=MySQL;DB_CLOSE_DELAY=-1",
+                "--database.username=sa",
+                "--database.password=",
+                "--database.connectionProperties=",
+                "--hibernate.dialect=org.hibernate.dialect.H2Dialect",
+                "--hibernate.hbm2ddl.auto=create-drop",
+                "--hibernate.cache.use_second_level_cache=false",
+                "--hibernate.cache.use_query_cache=false",
+                "--reservation.search-engine=" + searchEngine);
+
+        // One day reservations every other day
+        startFrom = LocalDate.now().plusDays(1);
+        endTo = startFrom.plusDays(reservationCount * 2L);
+        List<Reservation> reservations = new ArrayList<>();
+        for (int i = 0; i < reservationCount; i++) {
+            LocalDate day = startFrom.plusDays(i * 2L + 1);
+            Reservation reservation = new Reservation();
+            reservation.setUsername("user" + i);
+            reservation.setEmail("user" + i + "@test.com");
+            reservation.setStartFrom(day);
+            reservation.setEndTo(day);
+            reservations.add(reservation);
+        }
+        context.getBean(ReservationRepository.class).saveAll(reservations);
+
+        // Every search goes to the repository
+        ReflectionTestUtils.setField(context.getBean(OccupancyIndex.class), "ready", false);
+        reservationService = context.getBean(ReservationService.class);
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public List<DateRange> search() {
+        return reservationService.searchForReservation(Sites.DEFAULT_SITE_ID, startFrom, endTo);
+    }
+}
@@ -0,0 +1,46 @@
+package com.techtao.campsite.benchmark;
+
+import com.techtao.campsite.domain.validator.DateRangeValidator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.LocalDate;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link DateRangeValidator#validateDateRange(LocalDate, LocalDate)} which runs on every write.
+ *
+ * @author rantao
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DateRangeValidatorBenchmark {
+
+    private DateRangeValidator dateRangeValidator;
+    private LocalDate startFrom;
+    private LocalDate endTo;
+
+    @Setup
+    public void setUp() {
+        dateRangeValidator = new DateRangeValidator();
+        startFrom = LocalDate.now().plusDays(5);
+        endTo = startFrom.plusDays(2);
+    }
+
+    @Benchmark
+    public boolean validateDateRange() {
+        return dateRangeValidator.validateDateRange(startFrom, endTo);
+    }
+}
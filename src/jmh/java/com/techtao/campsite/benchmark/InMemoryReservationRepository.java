@@ -0,0 +1,86 @@
+package com.techtao.campsite.benchmark;
+
+import com.techtao.campsite.persistence.entity.Reservation;
+import com.techtao.campsite.persistence.repository.ReservationRepository;
+
+import java.lang.reflect.Proxy;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link ReservationRepository} kept in a map, so the benchmarks measure the service and not the database.
+ * Only the methods used by the reservation service are implemented.
+ *
+ * @author rantao
+ */
+public final class InMemoryReservationRepository {
+
+    private final Map<Long, Reservation> reservations = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+
+    public static ReservationRepository create(Collection<Reservation> initialReservations) {
+        InMemoryReservationRepository repository = new InMemoryReservationRepository();
+        initialReservations.forEach(repository::save);
+        return (ReservationRepository) Proxy.newProxyInstance(ReservationRepository.class.getClassLoader(),
+                new Class<?>[]{ReservationRepository.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "save":
+                            return repository.save((Reservation) args[0]);
+                        case "findAllBySiteIdAndStartFromLessThanEqualAndEndToGreaterThanEqual":
+                            return repository.findOverlapping((String) args[0], (LocalDate) args[1],
+                                    (LocalDate) args[2]);
+                        case "findConflicting":
+                            return repository.findOverlapping((String) args[0], (LocalDate) args[2],
+                                    (LocalDate) args[1]);
+                        case "findAllByEndToGreaterThanEqual":
+                            return repository.findOverlapping(null, LocalDate.MAX, (LocalDate) args[0]);
+                        case "findByIdAndSiteIdAndEmail":
+                            return repository.findByIdAndSiteIdAndEmail((Long) args[0], (String) args[1],
+                                    (String) args[2]);
+                        case "delete":
+                            repository.reservations.remove(((Reservation) args[0]).getId());
+                            return null;
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        case "toString":
+                            return InMemoryReservationRepository.class.getSimpleName();
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private Reservation save(Reservation reservation) {
+        if (Objects.isNull(reservation.getId())) {
+            reservation.setId(sequence.incrementAndGet());
+        }
+        reservations.put(reservation.getId(), reservation);
+        return reservation;
+    }
+
+    // A null site matches the reservations of every site
+    private List<Reservation> findOverlapping(String siteId, LocalDate endTo, LocalDate startFrom) {
+        List<Reservation> results = new ArrayList<>();
+        for (Reservation reservation : reservations.values()) {
+            if ((Objects.isNull(siteId) || siteId.equals(reservation.getSiteId()))
+                    && !reservation.getStartFrom().isAfter(endTo) && !reservation.getEndTo().isBefore(startFrom)) {
+                results.add(reservation);
+            }
+        }
+        return results;
+    }
+
+    private Reservation findByIdAndSiteIdAndEmail(Long id, String siteId, String email) {
+        Reservation reservation = reservations.get(id);
+        return Objects.nonNull(reservation) && reservation.getSiteId().equals(siteId)
+                && reservation.getEmail().equals(email) ? reservation : null;
+    }
+}
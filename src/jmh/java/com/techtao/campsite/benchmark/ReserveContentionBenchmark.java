@@ -0,0 +1,84 @@
+package com.techtao.campsite.benchmark;
+
+import com.techtao.campsite.domain.exception.NotAvailableException;
+import com.techtao.campsite.domain.model.Sites;
+import com.techtao.campsite.service.ReservationService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures reserve followed by cancel from several threads, either all on the same days or each thread on its own
+ * days. Run with -t to change the number of threads.
+ *
+ * @author rantao
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class ReserveContentionBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class SharedState {
+
+        @Param({"overlapping", "disjoint"})
+        private String dateRanges;
+
+        private ReservationService reservationService;
+        private final AtomicInteger threads = new AtomicInteger();
+
+        @Setup
+        public void setUp() {
+            reservationService = BenchmarkServices.reservationService(
+                    InMemoryReservationRepository.create(Collections.emptyList()), true);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+
+        private String email;
+        private LocalDate startFrom;
+        private LocalDate endTo;
+
+        @Setup
+        public void setUp(SharedState sharedState) {
+            int thread = sharedState.threads.getAndIncrement();
+            email = "user" + thread + "@test.com";
+            // The bookable window is one month, so only the first 30 threads get days of their own
+            int offset = "disjoint".equals(sharedState.dateRanges) ? thread % 30 : 0;
+            startFrom = LocalDate.now().plusDays(1 + offset);
+            endTo = startFrom;
+        }
+    }
+
+    @Benchmark
+    public String reserveAndCancel(SharedState sharedState, ThreadState threadState) throws NotAvailableException {
+        String id;
+        try {
+            id = sharedState.reservationService.reserve(Sites.DEFAULT_SITE_ID, "user", threadState.email,
+                    threadState.startFrom, threadState.endTo);
+        } catch (NotAvailableException ex) {
+            return ex.getErrorMessage();
+        }
+        sharedState.reservationService.cancel(Sites.DEFAULT_SITE_ID, id, threadState.email);
+        return id;
+    }
+}
@@ -0,0 +1,80 @@
+package com.techtao.campsite.benchmark;
+
+import com.techtao.campsite.domain.model.DateRange;
+import com.techtao.campsite.domain.model.Sites;
+import com.techtao.campsite.persistence.entity.Reservation;
+import com.techtao.campsite.service.ReservationService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the gap finding of searchForReservation over a growing number of reservations, once walking the
+ * repository results and once walking the occupancy index.
+ *
+ * @author rantao
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchBenchmark {
+
+    @Param({"10", "100", "1000"})
+    private int reservationCount;
+
+    private ReservationService repositorySearch;
+    private ReservationService indexSearch;
+    private LocalDate startFrom;
+    private LocalDate endTo;
+
+    @Setup
+    public void setUp() {
+        // One day reservations every other day, in random order as they would come from the database
+        startFrom = LocalDate.now().plusDays(1);
+        endTo = startFrom.plusDays(reservationCount * 2L);
+        List<Reservation> reservations = new ArrayList<>();
+        for (int i = 0; i < reservationCount; i++) {
+            LocalDate day = startFrom.plusDays(i * 2L + 1);
+            Reservation reservation = new Reservation();
+            reservation.setUsername("user" + i);
+            reservation.setEmail("user" + i + "@test.com");
+            reservation.setStartFrom(day);
+            reservation.setEndTo(day);
+            reservations.add(reservation);
+        }
+        Collections.shuffle(reservations, new Random(42));
+
+        repositorySearch = BenchmarkServices.reservationService(
+                InMemoryReservationRepository.create(reservations), false);
+        indexSearch = BenchmarkServices.reservationService(
+                InMemoryReservationRepository.create(reservations), true);
+    }
+
+    @Benchmark
+    public List<DateRange> searchFromRepository() {
+        return repositorySearch.searchForReservation(Sites.DEFAULT_SITE_ID, startFrom, endTo);
+    }
+
+    @Benchmark
+    public List<DateRange> searchFromIndex() {
+        return indexSearch.searchForReservation(Sites.DEFAULT_SITE_ID, startFrom, endTo);
+    }
+}
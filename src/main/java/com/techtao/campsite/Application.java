@@ -3,6 +3,7 @@ package com.techtao.campsite;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.annotation.Bean;
 
@@ -15,6 +16,7 @@ public class Application {
     }
 
     @Bean
+    @ConditionalOnProperty(name = "campsite.startup.print-beans", matchIfMissing = true)
     public CommandLineRunner commandLineRunner(ApplicationContext ctx) {
         return args -> {
 
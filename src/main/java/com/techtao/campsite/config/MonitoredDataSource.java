@@ -0,0 +1,47 @@
+package com.techtao.campsite.config;
+
+import lombok.Getter;
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.apache.commons.pool2.impl.GenericObjectPool;
+
+import java.util.Objects;
+
+/**
+ * A named {@link BasicDataSource} which also exposes the waiting side of its pool, so we could tell whether
+ * requests are slow because they queue for a connection.
+ *
+ * @author rantao
+ */
+public class MonitoredDataSource extends BasicDataSource {
+
+    @Getter
+    private final String poolName;
+
+    public MonitoredDataSource(String poolName) {
+        this.poolName = poolName;
+    }
+
+    /**
+     * @return the number of threads waiting for a connection
+     */
+    public int getNumWaiters() {
+        GenericObjectPool<?> pool = getConnectionPool();
+        return Objects.isNull(pool) ? 0 : pool.getNumWaiters();
+    }
+
+    /**
+     * @return the mean time spent waiting for a connection over the recent borrows
+     */
+    public long getMeanBorrowWaitTimeMillis() {
+        GenericObjectPool<?> pool = getConnectionPool();
+        return Objects.isNull(pool) ? 0 : pool.getMeanBorrowWaitTimeMillis();
+    }
+
+    /**
+     * @return the longest time spent waiting for a connection since the pool was created
+     */
+    public long getMaxBorrowWaitTimeMillis() {
+        GenericObjectPool<?> pool = getConnectionPool();
+        return Objects.isNull(pool) ? 0 : pool.getMaxBorrowWaitTimeMillis();
+    }
+}
@@ -0,0 +1,64 @@
+package com.techtao.campsite.config;
+
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.sql.DataSource;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * A data source which sends read-only transactions to the replicas in turn and everything else to the primary.
+ * It should be wrapped by a lazy connection proxy, so the read-only flag is known when the connection is taken.
+ *
+ * @author rantao
+ */
+public class ReadWriteRoutingDataSource extends AbstractRoutingDataSource {
+
+    private static final String PRIMARY = "primary";
+    private static final String REPLICA = "replica-";
+    private static final ThreadLocal<Boolean> FORCE_PRIMARY = ThreadLocal.withInitial(() -> Boolean.FALSE);
+
+    private final int replicaCount;
+    private final AtomicInteger next = new AtomicInteger();
+
+    public ReadWriteRoutingDataSource(DataSource primary, List<DataSource> replicas) {
+        Map<Object, Object> targetDataSources = new HashMap<>();
+        targetDataSources.put(PRIMARY, primary);
+        for (int i = 0; i < replicas.size(); i++) {
+            targetDataSources.put(REPLICA + i, replicas.get(i));
+        }
+        this.replicaCount = replicas.size();
+        setTargetDataSources(targetDataSources);
+        setDefaultTargetDataSource(primary);
+    }
+
+    /**
+     * Run the given reads against the primary, e.g. when the replicas may not have caught up with a write yet.
+     *
+     * @param reads the reads to run
+     * @param <T> the type of the result
+     * @return the result of the reads
+     */
+    public static <T> T onPrimary(Supplier<T> reads) {
+        Boolean forced = FORCE_PRIMARY.get();
+        FORCE_PRIMARY.set(Boolean.TRUE);
+        try {
+            return reads.get();
+        } finally {
+            FORCE_PRIMARY.set(forced);
+        }
+    }
+
+    @Override
+    protected Object determineCurrentLookupKey() {
+        if (replicaCount == 0 || FORCE_PRIMARY.get()
+                || !TransactionSynchronizationManager.isCurrentTransactionReadOnly()) {
+            return PRIMARY;
+        }
+        return REPLICA + Math.floorMod(next.getAndIncrement(), replicaCount);
+    }
+}
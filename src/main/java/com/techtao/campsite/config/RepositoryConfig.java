@@ -1,20 +1,33 @@
 package com.techtao.campsite.config;
 
 import org.apache.commons.dbcp2.BasicDataSource;
+import org.ehcache.jsr107.EhcacheCachingProvider;
+import org.hibernate.cache.jcache.ConfigSettings;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.PropertySource;
 import org.springframework.core.env.Environment;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.data.repository.config.BootstrapMode;
 import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
 import org.springframework.orm.jpa.JpaTransactionManager;
 import org.springframework.orm.jpa.JpaVendorAdapter;
 import org.springframework.orm.jpa.LocalContainerEntityManagerFactoryBean;
 import org.springframework.orm.jpa.vendor.HibernateJpaVendorAdapter;
 import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.annotation.EnableTransactionManagement;
+import org.springframework.util.StringUtils;
 
+import javax.cache.CacheManager;
+import javax.cache.Caching;
+import javax.cache.spi.CachingProvider;
 import javax.sql.DataSource;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
 /**
@@ -24,7 +37,7 @@ import java.util.Properties;
  */
 @Configuration
 @EnableTransactionManagement
-@EnableJpaRepositories("com.techtao.campsite.persistence.repository")
+@EnableJpaRepositories(value = "com.techtao.campsite.persistence.repository", bootstrapMode = BootstrapMode.DEFERRED)
 @PropertySource("classpath:database.properties")
 public class RepositoryConfig {
 
@@ -39,6 +52,10 @@ public class RepositoryConfig {
         lcemfb.setPersistenceUnitName("campsiteJpaPersistenceUnit");
         lcemfb.setPackagesToScan("com.techtao.campsite.persistence.entity");
         lcemfb.setJpaProperties(jpaProperties());
+        if (env.getProperty("database.jpa.bootstrap-in-background", Boolean.class, false)) {
+            // The rest of the context starts meanwhile, the repositories are deferred until the end of the refresh
+            lcemfb.setBootstrapExecutor(new SimpleAsyncTaskExecutor("jpa-bootstrap-"));
+        }
         return lcemfb;
     }
 
@@ -50,11 +67,52 @@ public class RepositoryConfig {
 
     @Bean
     public DataSource getDataSource() {
-        BasicDataSource dataSource = new BasicDataSource();
+        BasicDataSource primary = createDataSource("primary", env.getProperty("database.url"),
+                env.getProperty("database.username"), env.getProperty("database.password"));
+
+        String[] replicaUrls = StringUtils.commaDelimitedListToStringArray(
+                env.getProperty("database.replica.urls", ""));
+        if (replicaUrls.length == 0) {
+            return primary;
+        }
+
+        List<DataSource> replicas = new ArrayList<>();
+        for (int i = 0; i < replicaUrls.length; i++) {
+            BasicDataSource replica = createDataSource("replica-" + i, replicaUrls[i].trim(),
+                    env.getProperty("database.replica.username", env.getProperty("database.username")),
+                    env.getProperty("database.replica.password", env.getProperty("database.password")));
+            replica.setDefaultReadOnly(true);
+            replicas.add(replica);
+        }
+        ReadWriteRoutingDataSource routingDataSource = new ReadWriteRoutingDataSource(primary, replicas);
+        routingDataSource.afterPropertiesSet();
+        return new LazyConnectionDataSourceProxy(routingDataSource);
+    }
+
+    private BasicDataSource createDataSource(String poolName, String url, String username, String password) {
+        BasicDataSource dataSource = new MonitoredDataSource(poolName);
         dataSource.setDriverClassName(env.getProperty("database.driverClassName"));
-        dataSource.setUrl(env.getProperty("database.url"));
-        dataSource.setUsername(env.getProperty("database.username"));
-        dataSource.setPassword(env.getProperty("database.password"));
+        dataSource.setUrl(url);
+        dataSource.setUsername(username);
+        dataSource.setPassword(password);
+
+        dataSource.setInitialSize(env.getProperty("database.pool.initialSize", Integer.class, 5));
+        dataSource.setMinIdle(env.getProperty("database.pool.minIdle", Integer.class, 5));
+        dataSource.setMaxIdle(env.getProperty("database.pool.maxIdle", Integer.class, 20));
+        dataSource.setMaxTotal(env.getProperty("database.pool.maxTotal", Integer.class, 20));
+        dataSource.setMaxWaitMillis(env.getProperty("database.pool.maxWaitMillis", Long.class, 5000L));
+
+        dataSource.setValidationQuery(env.getProperty("database.pool.validationQuery", "SELECT 1"));
+        dataSource.setValidationQueryTimeout(env.getProperty("database.pool.validationQueryTimeout", Integer.class, 2));
+        dataSource.setTestOnBorrow(env.getProperty("database.pool.testOnBorrow", Boolean.class, true));
+        dataSource.setTestWhileIdle(env.getProperty("database.pool.testWhileIdle", Boolean.class, true));
+        dataSource.setTimeBetweenEvictionRunsMillis(
+                env.getProperty("database.pool.timeBetweenEvictionRunsMillis", Long.class, 60000L));
+
+        dataSource.setPoolPreparedStatements(env.getProperty("database.pool.poolPreparedStatements", Boolean.class, true));
+        dataSource.setMaxOpenPreparedStatements(
+                env.getProperty("database.pool.maxOpenPreparedStatements", Integer.class, 100));
+        dataSource.setConnectionProperties(env.getProperty("database.connectionProperties", ""));
         return dataSource;
     }
 
@@ -65,12 +123,42 @@ public class RepositoryConfig {
         return jpaTransactionManager;
     }
 
+    /**
+     * The JCache manager backing the Hibernate second level and query caches, the regions are sized in ehcache.xml.
+     */
+    @Bean(destroyMethod = "close")
+    public CacheManager hibernateCacheManager() throws IOException {
+        CachingProvider cachingProvider = Caching.getCachingProvider(EhcacheCachingProvider.class.getName());
+        return cachingProvider.getCacheManager(
+                new ClassPathResource(env.getProperty("hibernate.javax.cache.config", "ehcache.xml")).getURI(),
+                getClass().getClassLoader());
+    }
+
     private Properties jpaProperties() {
         Properties properties = new Properties();
         properties.put("hibernate.dialect", env.getProperty("hibernate.dialect"));
         properties.put("hibernate.show_sql", env.getProperty("hibernate.show_sql"));
         properties.put("hibernate.format_sql", env.getProperty("hibernate.format_sql"));
         properties.put("hibernate.id.new_generator_mappings", env.getProperty("hibernate.id.new_generator_mappings"));
+        if (env.containsProperty("hibernate.hbm2ddl.auto")) {
+            properties.put("hibernate.hbm2ddl.auto", env.getProperty("hibernate.hbm2ddl.auto"));
+        }
+        properties.put("hibernate.cache.use_second_level_cache",
+                env.getProperty("hibernate.cache.use_second_level_cache", "true"));
+        properties.put("hibernate.cache.use_query_cache", env.getProperty("hibernate.cache.use_query_cache", "true"));
+        properties.put("hibernate.cache.region.factory_class", "jcache");
+        properties.put("hibernate.search.autoregister_listeners",
+                env.getProperty("hibernate.search.autoregister_listeners", "true"));
+        properties.put("hibernate.generate_statistics", env.getProperty("hibernate.generate_statistics", "false"));
+        properties.put("hibernate.jdbc.batch_size", env.getProperty("hibernate.jdbc.batch_size", "50"));
+        properties.put("hibernate.jdbc.batch_versioned_data", env.getProperty("hibernate.jdbc.batch_versioned_data", "true"));
+        properties.put("hibernate.order_inserts", env.getProperty("hibernate.order_inserts", "true"));
+        properties.put("hibernate.order_updates", env.getProperty("hibernate.order_updates", "true"));
+        try {
+            properties.put(ConfigSettings.CACHE_MANAGER, hibernateCacheManager());
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot load the cache configuration", e);
+        }
         return properties;
     }
 }
@@ -1,5 +1,6 @@
 package com.techtao.campsite.config;
 
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import springfox.documentation.builders.PathSelectors;
@@ -9,11 +10,12 @@ import springfox.documentation.spring.web.plugins.Docket;
 import springfox.documentation.swagger2.annotations.EnableSwagger2;
 
 /**
- * Swagger configuration
+ * Swagger configuration, left out with swagger.enabled=false so the handler mappings are not scanned at startup
  *
  * @author rantao
  */
 @Configuration
+@ConditionalOnProperty(name = "swagger.enabled", matchIfMissing = true)
 @EnableSwagger2
 public class SwaggerConfig {
 
@@ -0,0 +1,28 @@
+package com.techtao.campsite.config;
+
+import com.techtao.campsite.controller.WriteThrottleInterceptor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+/**
+ * Spring MVC configuration
+ *
+ * @author rantao
+ */
+@Configuration
+public class WebConfig implements WebMvcConfigurer {
+
+    @Autowired
+    private WriteThrottleInterceptor writeThrottleInterceptor;
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        registry.addInterceptor(writeThrottleInterceptor)
+                .addPathPatterns("/api/reserve", "/api/reserve/batch", "/api/reserve/submit", "/api/update/*",
+                        "/api/cancel/*")
+                .addPathPatterns("/api/sites/*/reserve", "/api/sites/*/reserve/batch", "/api/sites/*/reserve/submit",
+                        "/api/sites/*/update/*", "/api/sites/*/cancel/*");
+    }
+}
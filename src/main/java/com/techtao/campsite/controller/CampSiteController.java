@@ -1,22 +1,57 @@
 package com.techtao.campsite.controller;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.google.common.base.Strings;
+import com.techtao.campsite.config.ReadWriteRoutingDataSource;
+import com.techtao.campsite.domain.exception.IdempotencyKeyReusedException;
 import com.techtao.campsite.domain.exception.NotAvailableException;
 import com.techtao.campsite.domain.model.DateRange;
+import com.techtao.campsite.domain.model.ReservationRequest;
+import com.techtao.campsite.domain.model.ReservationResult;
+import com.techtao.campsite.domain.model.ReservationTicket;
+import com.techtao.campsite.domain.model.Sites;
+import com.techtao.campsite.service.AvailabilityBroadcaster;
+import com.techtao.campsite.service.AvailabilityResponseCache;
+import com.techtao.campsite.service.IdempotencyStore;
+import com.techtao.campsite.service.ReplicationLagGuard;
+import com.techtao.campsite.service.ReservationPipeline;
 import com.techtao.campsite.service.ReservationService;
+import com.techtao.campsite.service.RequestThrottle;
+import com.techtao.campsite.service.ReservationWriteExecutor;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.lang.Nullable;
 import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.time.LocalDate;
 import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 /**
  * Controller class for REST APIs.
@@ -27,23 +62,175 @@ import java.util.List;
 @RequestMapping("/api")
 public class CampSiteController {
 
+    private static final String IDEMPOTENCY_KEY = "Idempotency-Key";
+
     @Autowired
     ReservationService reservationService;
 
-    @GetMapping(value = "/search", produces = "application/json")
+    @Autowired
+    ReservationPipeline reservationPipeline;
+
+    @Autowired
+    ReplicationLagGuard replicationLagGuard;
+
+    @Autowired
+    AvailabilityBroadcaster availabilityBroadcaster;
+
+    @Autowired
+    IdempotencyStore idempotencyStore;
+
+    @Autowired
+    AvailabilityResponseCache availabilityResponseCache;
+
+    @Autowired
+    ReservationWriteExecutor reservationWriteExecutor;
+
+    @Autowired
+    ObjectMapper objectMapper;
+
+    @Autowired
+    RequestThrottle requestThrottle;
+
+    @Value("${reservation.writes.retry-after-seconds:1}")
+    long retryAfterSeconds;
+
+    // The sites served by this instance, the paths without a site always serve the default site
+    @Value("${reservation.sites:" + Sites.DEFAULT_SITE_ID + "}")
+    Set<String> sites;
+
+    // A batch holds the locks of all its dates until it commits, so it is kept small
+    @Value("${reservation.batch.max-size:50}")
+    int maxBatchSize;
+
+    @GetMapping(value = {"/search", "/sites/{siteId}/search"}, produces = "application/json")
     @ResponseBody
-    public List<DateRange> getAvailableDateRanges(@Nullable @RequestParam String startFrom, @Nullable @RequestParam String endTo) {
+    public ResponseEntity<String> getAvailableDateRanges(@Nullable @PathVariable String siteId,
+                                                         @Nullable @RequestParam String startFrom,
+                                                         @Nullable @RequestParam String endTo,
+                                                         @Nullable @RequestParam String email, WebRequest webRequest)
+            throws JsonProcessingException {
+        String site = siteOf(siteId);
         LocalDate today = LocalDate.now();
         LocalDate startDate = Strings.isNullOrEmpty(startFrom) ? today.plusDays(1) : LocalDate.parse(startFrom);
         LocalDate endDate = Strings.isNullOrEmpty(endTo) ? today.plusMonths(1) : LocalDate.parse(endTo);
 
+        // Read your own writes, a replica may not have the latest reservation of this user yet
+        if (replicationLagGuard.recentlyWrote(email)) {
+            List<DateRange> dateRanges = ReadWriteRoutingDataSource.onPrimary(
+                    () -> reservationService.searchForReservation(site, startDate, endDate));
+            return ResponseEntity.ok(objectMapper.writeValueAsString(dateRanges));
+        }
+
+        // Answers 304 when the If-None-Match header still matches the current availability version
+        String eTag = availabilityResponseCache.eTagOf(site, startDate, endDate);
+        if (Objects.nonNull(eTag) && webRequest.checkNotModified(eTag)) {
+            return null;
+        }
 
-        return reservationService.searchForReservation(startDate, endDate);
+        AvailabilityResponseCache.Response response = availabilityResponseCache.search(site, startDate, endDate);
+        if (Objects.isNull(response.getETag())) {
+            return ResponseEntity.ok().body(response.getBody());
+        }
+        return ResponseEntity.ok().eTag(response.getETag()).body(response.getBody());
     }
 
-    @PutMapping(value = "/reserve", produces = "application/json")
-    public String reserve(@RequestParam String email, @RequestParam String userName,
-                          @RequestParam String startFrom, @RequestParam String endTo) {
+    @GetMapping(value = {"/search/stream", "/sites/{siteId}/search/stream"}, produces = "application/x-ndjson")
+    public ResponseEntity<StreamingResponseBody> streamAvailableDateRanges(@Nullable @PathVariable String siteId,
+                                                                           @Nullable @RequestParam String startFrom,
+                                                                           @Nullable @RequestParam String endTo) {
+        String site = siteOf(siteId);
+        LocalDate today = LocalDate.now();
+        LocalDate startDate = Strings.isNullOrEmpty(startFrom) ? today.plusDays(1) : LocalDate.parse(startFrom);
+        LocalDate endDate = Strings.isNullOrEmpty(endTo) ? today.plusMonths(1) : LocalDate.parse(endTo);
+
+        // One DateRange per line, written as it is found so neither side has to hold the whole window
+        StreamingResponseBody body = outputStream -> {
+            ObjectWriter writer = objectMapper.writerFor(DateRange.class);
+            reservationService.streamForReservation(site, startDate, endDate, dateRange -> {
+                try {
+                    outputStream.write(writer.writeValueAsBytes(dateRange));
+                    outputStream.write('\n');
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+        };
+        return ResponseEntity.ok(body);
+    }
+
+    @GetMapping(value = {"/search/changes", "/sites/{siteId}/search/changes"},
+            produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> subscribeAvailabilityChanges(@Nullable @PathVariable String siteId) {
+        String site = siteOf(siteId);
+        try {
+            return ResponseEntity.ok(availabilityBroadcaster.subscribe(site));
+        } catch (NotAvailableException ex) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+        }
+    }
+
+    @PutMapping(value = {"/reserve", "/sites/{siteId}/reserve"}, produces = "application/json")
+    public CompletableFuture<ResponseEntity<String>> reserve(
+            @Nullable @PathVariable String siteId, @RequestParam String email, @RequestParam String userName,
+            @RequestParam String startFrom, @RequestParam String endTo,
+            @Nullable @RequestHeader(IDEMPOTENCY_KEY) String idempotencyKey) {
+        String site = siteOf(siteId);
+        LocalDate today = LocalDate.now();
+        LocalDate startDate = Strings.isNullOrEmpty(startFrom) ? today.plusDays(1) : LocalDate.parse(startFrom);
+        LocalDate endDate = Strings.isNullOrEmpty(endTo) ? today.plusMonths(1) : LocalDate.parse(endTo);
+
+        if (startDate.isBefore(today) || endDate.isBefore(today)) {
+            throw new IllegalArgumentException("You cannot reserve in history");
+        }
+
+        return write("reserve", () -> {
+            try {
+                if (Strings.isNullOrEmpty(idempotencyKey)) {
+                    return reservationService.reserve(site, userName, email, startDate, endDate);
+                }
+                // The key only replays the very same request, different parameters with the same key are refused
+                String request = String.join("/", email, userName, startDate.toString(), endDate.toString());
+                return idempotencyStore.execute("reserve", site + "/" + idempotencyKey, request,
+                        () -> reservationService.reserve(site, userName, email, startDate, endDate));
+            } catch (NotAvailableException ex) {
+                return ex.getErrorMessage();
+            }
+        });
+    }
+
+    @PutMapping(value = {"/reserve/batch", "/sites/{siteId}/reserve/batch"}, consumes = "application/json",
+            produces = "application/json")
+    public CompletableFuture<ResponseEntity<List<ReservationResult>>> reserveAll(
+            @Nullable @PathVariable String siteId, @RequestBody List<ReservationRequest> requests) {
+        String site = siteOf(siteId);
+        if (requests.size() > maxBatchSize) {
+            return CompletableFuture.completedFuture(ResponseEntity.badRequest().build());
+        }
+        // The interceptor only saw the client address, every user of the batch pays once
+        for (String email : requests.stream().map(ReservationRequest::getEmail).filter(Objects::nonNull)
+                .map(email -> email.trim().toLowerCase(Locale.ROOT)).collect(Collectors.toSet())) {
+            long wait = requestThrottle.tryAcquireEmail(email);
+            if (wait > 0) {
+                return CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                        .header(HttpHeaders.RETRY_AFTER, WriteThrottleInterceptor.retryAfter(wait)).build());
+            }
+        }
+        return write("reserveAll", () -> {
+            try {
+                return reservationService.reserveAll(site, requests);
+            } catch (NotAvailableException ex) {
+                // Nothing of the batch was saved, e.g. its dates could not be locked in time
+                return requests.stream().map(request -> ReservationResult.rejected(ex.getErrorMessage()))
+                        .collect(Collectors.toList());
+            }
+        });
+    }
+
+    @PutMapping(value = {"/reserve/submit", "/sites/{siteId}/reserve/submit"}, produces = "application/json")
+    public String submitReservation(@Nullable @PathVariable String siteId, @RequestParam String email,
+                                    @RequestParam String userName, @RequestParam String startFrom,
+                                    @RequestParam String endTo) {
+        String site = siteOf(siteId);
         LocalDate today = LocalDate.now();
         LocalDate startDate = Strings.isNullOrEmpty(startFrom) ? today.plusDays(1) : LocalDate.parse(startFrom);
         LocalDate endDate = Strings.isNullOrEmpty(endTo) ? today.plusMonths(1) : LocalDate.parse(endTo);
@@ -53,28 +240,80 @@ public class CampSiteController {
         }
 
         try {
-            String id = reservationService.reserve(userName, email, startDate, endDate);
-            return id;
+            return reservationPipeline.submit(site, userName, email, startDate, endDate);
         } catch (NotAvailableException ex) {
             return ex.getErrorMessage();
         }
     }
 
-    @PutMapping(value = "/update/{id}", produces = "application/json")
-    public String update(@PathVariable String id, @RequestParam String email,
-                         @RequestParam String startFrom, @RequestParam String endTo) {
+    @GetMapping(value = "/reserve/status/{token}", produces = "application/json")
+    public ResponseEntity<ReservationTicket> getReservationStatus(@PathVariable String token) {
+        ReservationTicket ticket = reservationPipeline.status(token);
+        if (Objects.isNull(ticket)) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok(ticket);
+    }
+
+    @PutMapping(value = {"/update/{id}", "/sites/{siteId}/update/{id}"}, produces = "application/json")
+    public CompletableFuture<ResponseEntity<String>> update(
+            @Nullable @PathVariable String siteId, @PathVariable String id, @RequestParam String email,
+            @RequestParam String startFrom, @RequestParam String endTo,
+            @Nullable @RequestHeader(IDEMPOTENCY_KEY) String idempotencyKey) {
+        String site = siteOf(siteId);
+        LocalDate startDate = LocalDate.parse(startFrom);
+        LocalDate endDate = LocalDate.parse(endTo);
+        return write("update", () -> {
+            try {
+                if (Strings.isNullOrEmpty(idempotencyKey)) {
+                    return reservationService.update(site, id, email, startDate, endDate);
+                }
+                String request = String.join("/", id, email, startDate.toString(), endDate.toString());
+                return idempotencyStore.execute("update", site + "/" + idempotencyKey, request,
+                        () -> reservationService.update(site, id, email, startDate, endDate));
+            } catch (NotAvailableException ex) {
+                return ex.getErrorMessage();
+            }
+        });
+    }
+
+    @DeleteMapping(value = {"/cancel/{id}", "/sites/{siteId}/cancel/{id}"}, produces = "application/json")
+    public CompletableFuture<ResponseEntity<String>> cancel(
+            @Nullable @PathVariable String siteId, @PathVariable String id, @RequestParam String email) {
+        String site = siteOf(siteId);
+        return write("cancel", () -> {
+            try {
+                reservationService.cancel(site, id, email);
+                return "SUCCESS";
+            } catch (NotAvailableException ex) {
+                return ex.getErrorMessage();
+            }
+        });
+    }
+
+    @ExceptionHandler(IdempotencyKeyReusedException.class)
+    public ResponseEntity<String> onIdempotencyKeyReused(IdempotencyKeyReusedException ex) {
+        return ResponseEntity.status(HttpStatus.UNPROCESSABLE_ENTITY).body(ex.getMessage());
+    }
+
+    // Runs a write off the servlet thread, answers 429 right away when too many writes are queued already
+    private <T> CompletableFuture<ResponseEntity<T>> write(String operation, Supplier<T> write) {
         try {
-            String newId = reservationService.update(id, email, LocalDate.parse(startFrom), LocalDate.parse(endTo));
-            return newId;
+            return reservationWriteExecutor.submit(operation, write).thenApply(ResponseEntity::ok);
         } catch (NotAvailableException ex) {
-            return ex.getErrorMessage();
+            return CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfterSeconds)).build());
         }
     }
 
-    @DeleteMapping(value = "/cancel/{id}", produces = "application/json")
-    public String cancel(@PathVariable String id, @RequestParam String email) {
-        reservationService.cancel(id, email);
-        return "SUCCESS";
+    private String siteOf(@Nullable String siteId) {
+        if (Objects.isNull(siteId)) {
+            return Sites.DEFAULT_SITE_ID;
+        }
+        if (!sites.contains(siteId)) {
+            throw new IllegalArgumentException("Unknown site " + siteId);
+        }
+        return siteId;
     }
 
 }
@@ -0,0 +1,48 @@
+package com.techtao.campsite.controller;
+
+import com.techtao.campsite.service.RequestThrottle;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Answers 429 to the writes of a caller out of tokens, before the controller parses or validates anything. The
+ * client address is the one Tomcat resolved from the forwarded headers of a trusted proxy, see
+ * server.forward-headers-strategy; the emails of a batch are in its body and throttled by the controller.
+ *
+ * @author rantao
+ */
+@Component
+public class WriteThrottleInterceptor implements HandlerInterceptor {
+
+    @Autowired
+    RequestThrottle requestThrottle;
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        // An asynchronous write comes back through the interceptors once it completes, it has paid already
+        if (request.getDispatcherType() == DispatcherType.ASYNC) {
+            return true;
+        }
+
+        long wait = requestThrottle.tryAcquire(request.getParameter("email"), request.getRemoteAddr());
+        if (wait == 0) {
+            return true;
+        }
+        response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+        response.setHeader(HttpHeaders.RETRY_AFTER, retryAfter(wait));
+        return false;
+    }
+
+    // Whole seconds, rounded up
+    static String retryAfter(long waitNanos) {
+        return String.valueOf(Math.max(1, (waitNanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1)));
+    }
+}
@@ -0,0 +1,48 @@
+package com.techtao.campsite.domain.event;
+
+import com.techtao.campsite.domain.model.DateRange;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * This event is published by the reservation service whenever a reservation is created, moved or cancelled.
+ * Listeners should only act on it after the surrounding transaction has been committed.
+ *
+ * @author rantao
+ */
+@Getter
+@ToString
+@AllArgsConstructor
+public class ReservationChangedEvent {
+
+    public enum Type {
+        RESERVED, UPDATED, CANCELLED
+    }
+
+    private final Type type;
+
+    private final String siteId;
+
+    private final Long reservationId;
+
+    /**
+     * The dates held before the change, null for a new reservation.
+     */
+    private final DateRange previous;
+
+    /**
+     * The dates held after the change, null for a cancellation.
+     */
+    private final DateRange current;
+
+    /**
+     * The version the row was inserted or deleted with, null for an update and when it is not known.
+     */
+    private final Long version;
+
+    public ReservationChangedEvent(Type type, String siteId, Long reservationId, DateRange previous,
+                                   DateRange current) {
+        this(type, siteId, reservationId, previous, current, null);
+    }
+}
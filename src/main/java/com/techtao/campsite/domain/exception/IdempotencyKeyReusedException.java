@@ -0,0 +1,15 @@
+package com.techtao.campsite.domain.exception;
+
+/**
+ * This class represents an idempotency key sent again with a request different from the one it was first used for.
+ *
+ * @author rantao
+ */
+public class IdempotencyKeyReusedException extends RuntimeException {
+
+    private static final long serialVersionUID = -2981067355014120477L;
+
+    public IdempotencyKeyReusedException() {
+        super("The Idempotency-Key was used for a different request");
+    }
+}
@@ -7,10 +7,24 @@ package com.techtao.campsite.domain.exception;
  */
 public class NotAvailableException extends Exception {
 
+    /**
+     * Why the dates are not available, used to count the rejections.
+     */
+    public enum Reason {
+        INVALID_RANGE, CONFLICT, NOT_FOUND, TIMEOUT, OVERLOADED, CONCURRENT_UPDATE, SYSTEM_ERROR
+    }
+
     private String errorMessage;
+    private Reason reason;
     private final static String ERROR_MESSAGE = "The given dates are unavailable:";
 
     public NotAvailableException(String errorMessage) {
+        this(Reason.CONFLICT, errorMessage);
+    }
+
+    public NotAvailableException(Reason reason, String errorMessage) {
+        super(errorMessage);
+        this.reason = reason;
         this.errorMessage = new StringBuilder().append(ERROR_MESSAGE).append(errorMessage).toString();
     }
 
@@ -18,4 +32,18 @@ public class NotAvailableException extends Exception {
         return this.errorMessage;
     }
 
+    public Reason getReason() {
+        return this.reason;
+    }
+
+    /**
+     * Whether the same request could succeed when it is simply sent again.
+     *
+     * @return true for timeouts, overload, concurrent updates and system errors
+     */
+    public boolean isRetryable() {
+        return reason == Reason.TIMEOUT || reason == Reason.OVERLOADED || reason == Reason.CONCURRENT_UPDATE
+                || reason == Reason.SYSTEM_ERROR;
+    }
+
 }
@@ -0,0 +1,32 @@
+package com.techtao.campsite.domain.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * This is a class to represent a committed change of the availability of a site, pushed to the subscribers of the
+ * availability stream.
+ *
+ * @author rantao
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class AvailabilityDelta implements Serializable {
+
+    private String siteId;
+
+    /**
+     * The days which are no longer available.
+     */
+    private List<DateRange> booked;
+
+    /**
+     * The days which became available again.
+     */
+    private List<DateRange> freed;
+}
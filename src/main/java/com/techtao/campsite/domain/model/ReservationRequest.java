@@ -0,0 +1,27 @@
+package com.techtao.campsite.domain.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.io.Serializable;
+import java.time.LocalDate;
+
+/**
+ * This is a class to represent one reservation of a batch.
+ *
+ * @author rantao
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class ReservationRequest implements Serializable {
+
+    private String userName;
+
+    private String email;
+
+    private LocalDate startFrom;
+
+    private LocalDate endTo;
+}
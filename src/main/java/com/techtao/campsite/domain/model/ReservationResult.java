@@ -0,0 +1,38 @@
+package com.techtao.campsite.domain.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.io.Serializable;
+
+/**
+ * This is a class to represent the outcome of one reservation of a batch.
+ *
+ * @author rantao
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class ReservationResult implements Serializable {
+
+    private boolean reserved;
+
+    /**
+     * The reservation id when it has been reserved.
+     */
+    private String reservationId;
+
+    /**
+     * The reason when it has been rejected.
+     */
+    private String errorMessage;
+
+    public static ReservationResult reserved(String reservationId) {
+        return new ReservationResult(true, reservationId, null);
+    }
+
+    public static ReservationResult rejected(String errorMessage) {
+        return new ReservationResult(false, null, errorMessage);
+    }
+}
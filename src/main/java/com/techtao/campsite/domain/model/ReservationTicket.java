@@ -0,0 +1,40 @@
+package com.techtao.campsite.domain.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.io.Serializable;
+
+/**
+ * This is a class to represent the outcome of a reservation request submitted to the pipeline.
+ *
+ * @author rantao
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class ReservationTicket implements Serializable {
+
+    public enum Status {
+        PENDING, RESERVED, REJECTED
+    }
+
+    private String token;
+
+    private Status status;
+
+    /**
+     * The reservation id once the request has been reserved.
+     */
+    private String reservationId;
+
+    /**
+     * The reason when the request has been rejected.
+     */
+    private String message;
+
+    public static ReservationTicket pending(String token) {
+        return new ReservationTicket(token, Status.PENDING, null, null);
+    }
+}
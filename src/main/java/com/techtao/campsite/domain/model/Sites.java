@@ -0,0 +1,17 @@
+package com.techtao.campsite.domain.model;
+
+/**
+ * Constants for the campsites served by this application.
+ *
+ * @author rantao
+ */
+public final class Sites {
+
+    /**
+     * The site of the APIs without a site in the path, and of the reservations made before sites were added.
+     */
+    public static final String DEFAULT_SITE_ID = "default";
+
+    private Sites() {
+    }
+}
@@ -0,0 +1,62 @@
+package com.techtao.campsite.metrics;
+
+import com.techtao.campsite.config.MonitoredDataSource;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Publishes the active, idle and pending connections and the borrow wait times of every connection pool,
+ * including the replica pools behind the read/write routing, under db.pool.* tagged by pool name.
+ *
+ * @author rantao
+ */
+@Component
+public class ConnectionPoolMetrics implements MeterBinder {
+
+    @Autowired
+    private DataSource dataSource;
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        List<MonitoredDataSource> pools = new ArrayList<>();
+        collectPools(dataSource, pools);
+        for (MonitoredDataSource pool : pools) {
+            gauge(registry, pool, "db.pool.active", "connections", MonitoredDataSource::getNumActive);
+            gauge(registry, pool, "db.pool.idle", "connections", MonitoredDataSource::getNumIdle);
+            gauge(registry, pool, "db.pool.max", "connections", MonitoredDataSource::getMaxTotal);
+            gauge(registry, pool, "db.pool.pending", "threads", MonitoredDataSource::getNumWaiters);
+            gauge(registry, pool, "db.pool.wait.mean", "milliseconds", MonitoredDataSource::getMeanBorrowWaitTimeMillis);
+            gauge(registry, pool, "db.pool.wait.max", "milliseconds", MonitoredDataSource::getMaxBorrowWaitTimeMillis);
+        }
+    }
+
+    private void gauge(MeterRegistry registry, MonitoredDataSource pool, String name, String baseUnit,
+                       ToDoubleFunction<MonitoredDataSource> value) {
+        Gauge.builder(name, pool, value)
+                .tag("pool", pool.getPoolName())
+                .baseUnit(baseUnit)
+                .register(registry);
+    }
+
+    private void collectPools(DataSource candidate, List<MonitoredDataSource> pools) {
+        if (candidate instanceof MonitoredDataSource) {
+            pools.add((MonitoredDataSource) candidate);
+        } else if (candidate instanceof DelegatingDataSource) {
+            collectPools(((DelegatingDataSource) candidate).getTargetDataSource(), pools);
+        } else if (candidate instanceof AbstractRoutingDataSource) {
+            for (DataSource target : ((AbstractRoutingDataSource) candidate).getResolvedDataSources().values()) {
+                collectPools(target, pools);
+            }
+        }
+    }
+}
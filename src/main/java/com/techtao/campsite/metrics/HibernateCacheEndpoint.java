@@ -0,0 +1,58 @@
+package com.techtao.campsite.metrics;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.CacheRegionStatistics;
+import org.hibernate.stat.Statistics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import javax.persistence.EntityManagerFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * An actuator endpoint at /actuator/hibernatecache with the hit and miss counts of the second level cache regions
+ * and of the query cache.
+ *
+ * @author rantao
+ */
+@Component
+@Endpoint(id = "hibernatecache")
+public class HibernateCacheEndpoint {
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    @ReadOperation
+    public Map<String, Object> cacheStatistics() {
+        Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+
+        Map<String, Object> regions = new LinkedHashMap<>();
+        for (String regionName : statistics.getSecondLevelCacheRegionNames()) {
+            CacheRegionStatistics region = statistics.getCacheRegionStatistics(regionName);
+            if (Objects.isNull(region)) {
+                continue;
+            }
+            Map<String, Object> regionStatistics = new LinkedHashMap<>();
+            regionStatistics.put("hits", region.getHitCount());
+            regionStatistics.put("misses", region.getMissCount());
+            regionStatistics.put("puts", region.getPutCount());
+            regionStatistics.put("elementsInMemory", region.getElementCountInMemory());
+            regions.put(regionName, regionStatistics);
+        }
+
+        Map<String, Object> queryCache = new LinkedHashMap<>();
+        queryCache.put("hits", statistics.getQueryCacheHitCount());
+        queryCache.put("misses", statistics.getQueryCacheMissCount());
+        queryCache.put("puts", statistics.getQueryCachePutCount());
+
+        Map<String, Object> results = new LinkedHashMap<>();
+        results.put("statisticsEnabled", statistics.isStatisticsEnabled());
+        results.put("regions", regions);
+        results.put("queryCache", queryCache);
+        return results;
+    }
+}
@@ -0,0 +1,242 @@
+package com.techtao.campsite.metrics;
+
+import com.techtao.campsite.domain.exception.NotAvailableException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Timers and counters of the reservation hot path, published with percentiles and histograms so they could be
+ * scraped from /actuator/prometheus and used for SLOs. Every meter is registered once and then looked up by its name
+ * and tags, the hot path never goes through the registry again.
+ *
+ * @author rantao
+ */
+@Component
+public class ReservationMetrics {
+
+    private static final double[] PERCENTILES = {0.5, 0.95, 0.99};
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    // Keyed by the meter name followed by its tags
+    private final Map<List<String>, Timer> timers = new ConcurrentHashMap<>();
+    private final Map<List<String>, Counter> counters = new ConcurrentHashMap<>();
+    private final Map<List<String>, DistributionSummary> summaries = new ConcurrentHashMap<>();
+
+    /**
+     * A call of the reservation service which may reject the request.
+     *
+     * @param <T> the type of the result
+     */
+    @FunctionalInterface
+    public interface ReservationCall<T> {
+        T call() throws NotAvailableException;
+    }
+
+    /**
+     * Time a reservation operation, tagged with its outcome, and count the rejections by reason.
+     *
+     * @param operation the operation name, e.g. reserve
+     * @param call the operation to run
+     * @param <T> the type of the result
+     * @return the result of the operation
+     * @throws NotAvailableException when the operation is rejected
+     */
+    public <T> T recordOperation(String operation, ReservationCall<T> call) throws NotAvailableException {
+        long start = System.nanoTime();
+        String outcome = "error";
+        try {
+            T result = call.call();
+            outcome = "success";
+            return result;
+        } catch (NotAvailableException ex) {
+            outcome = "rejected";
+            String reason = ex.getReason().name().toLowerCase();
+            counters.computeIfAbsent(Arrays.asList("campsite.reservation.rejections", operation, reason),
+                    key -> Counter.builder("campsite.reservation.rejections")
+                            .description("Reservation requests rejected by NotAvailableException")
+                            .tag("operation", operation)
+                            .tag("reason", reason)
+                            .register(meterRegistry))
+                    .increment();
+            throw ex;
+        } finally {
+            timer("campsite.reservation.operation", "operation", operation, "outcome", outcome)
+                    .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Time a search operation, tagged with its outcome: rejected for invalid arguments, error for any other failure.
+     *
+     * @param supplier the search to run
+     * @param <T> the type of the result
+     * @return the search result
+     */
+    public <T> T recordSearchOperation(Supplier<T> supplier) {
+        long start = System.nanoTime();
+        String outcome = "error";
+        try {
+            T result = supplier.get();
+            outcome = "success";
+            return result;
+        } catch (IllegalArgumentException ex) {
+            outcome = "rejected";
+            throw ex;
+        } finally {
+            timer("campsite.reservation.operation", "operation", "search", "outcome", outcome)
+                    .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Time a repository query.
+     *
+     * @param query the query name
+     * @param supplier the query to run
+     * @param <T> the type of the result
+     * @return the query result
+     */
+    public <T> T recordQuery(String query, Supplier<T> supplier) {
+        return timer("campsite.reservation.query", "query", query).record(supplier);
+    }
+
+    public void recordLockWait(long nanos, boolean acquired) {
+        timer("campsite.reservation.lock.wait", "acquired", String.valueOf(acquired))
+                .record(nanos, TimeUnit.NANOSECONDS);
+        if (!acquired) {
+            counter("campsite.reservation.lock.timeouts").increment();
+        }
+    }
+
+    public void recordLockHold(long nanos) {
+        timer("campsite.reservation.lock.hold").record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Record how a search has been answered and how many reservations it had to scan.
+     *
+     * @param source index or repository
+     * @param scanned the number of reservations scanned
+     */
+    public void recordSearch(String source, int scanned) {
+        summaries.computeIfAbsent(Arrays.asList("campsite.reservation.search.scanned", source),
+                key -> DistributionSummary.builder("campsite.reservation.search.scanned")
+                        .description("Reservations scanned by a search")
+                        .baseUnit("reservations")
+                        .tag("source", source)
+                        .publishPercentiles(PERCENTILES)
+                        .register(meterRegistry))
+                .record(scanned);
+    }
+
+    /**
+     * Record how many reservations have been saved by one group commit.
+     *
+     * @param size the number of reservations in the group
+     */
+    public void recordGroupCommit(int size) {
+        summaries.computeIfAbsent(Collections.singletonList("campsite.reservation.group.size"),
+                key -> DistributionSummary.builder("campsite.reservation.group.size")
+                        .description("Reservations saved by one group commit")
+                        .baseUnit("reservations")
+                        .publishPercentiles(PERCENTILES)
+                        .register(meterRegistry))
+                .record(size);
+    }
+
+    /**
+     * Count a request answered from the result of an earlier request with the same idempotency key.
+     *
+     * @param operation the operation name, e.g. reserve
+     */
+    public void recordIdempotentReplay(String operation) {
+        counter("campsite.reservation.idempotent.replays", "operation", operation).increment();
+    }
+
+    /**
+     * Count a subscriber of the availability stream dropped by the server.
+     *
+     * @param reason slow when its buffer was full, error when sending failed
+     */
+    public void recordSubscriberDropped(String reason) {
+        counter("campsite.availability.subscribers.dropped", "reason", reason).increment();
+    }
+
+    /**
+     * Count a write turned away because the write queue was full.
+     *
+     * @param operation the operation name, e.g. reserve
+     */
+    public void recordWriteRejected(String operation) {
+        counter("campsite.reservation.writes.rejected", "operation", operation).increment();
+    }
+
+    /**
+     * Count a write refused by the request throttle.
+     *
+     * @param bucket the bucket which ran out of tokens, email or ip
+     */
+    public void recordThrottled(String bucket) {
+        counter("campsite.reservation.throttled", "bucket", bucket).increment();
+    }
+
+    /**
+     * Publish how long after the JVM start a startup phase was reached.
+     *
+     * @param phase the phase, e.g. ready or first-request
+     * @param millis the milliseconds since the JVM start
+     */
+    public void recordStartup(String phase, long millis) {
+        Gauge.builder("campsite.startup.millis", () -> millis)
+                .description("Milliseconds from the JVM start to the startup phase")
+                .tag("phase", phase)
+                .strongReference(true)
+                .register(meterRegistry);
+    }
+
+    /**
+     * Publish the pool size, the active threads and the queued tasks of an executor under executor.*.
+     *
+     * @param executor the executor
+     * @param name the executor name tag
+     */
+    public void monitorExecutor(ExecutorService executor, String name) {
+        new ExecutorServiceMetrics(executor, name, Collections.emptyList()).bindTo(meterRegistry);
+    }
+
+    private Timer timer(String name, String... tags) {
+        return timers.computeIfAbsent(keyOf(name, tags), key -> Timer.builder(name)
+                .tags(tags)
+                .publishPercentiles(PERCENTILES)
+                .publishPercentileHistogram()
+                .register(meterRegistry));
+    }
+
+    private Counter counter(String name, String... tags) {
+        return counters.computeIfAbsent(keyOf(name, tags), key -> meterRegistry.counter(name, tags));
+    }
+
+    private static List<String> keyOf(String name, String... tags) {
+        String[] key = new String[tags.length + 1];
+        key[0] = name;
+        System.arraycopy(tags, 0, key, 1, tags.length);
+        return Arrays.asList(key);
+    }
+}
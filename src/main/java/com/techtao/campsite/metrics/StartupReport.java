@@ -0,0 +1,108 @@
+package com.techtao.campsite.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+import org.springframework.web.context.support.ServletRequestHandledEvent;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Measures how long after the JVM start the application is ready and handles its first request, logs both and
+ * publishes them under campsite.startup.millis. With {@code campsite.startup.probe=true} it sends that first request
+ * itself once ready, appends the times to {@code campsite.startup.report-file} and shuts the application down, which
+ * is how the cds build profile trains the class data sharing archive and reports the startup time. The report names
+ * the active profiles, so a start measured on the embedded database is not taken for a production one.
+ *
+ * @author rantao
+ */
+@Component
+public class StartupReport {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StartupReport.class);
+
+    @Autowired
+    private ReservationMetrics reservationMetrics;
+
+    @Autowired
+    private ApplicationContext context;
+
+    @Value("${campsite.startup.probe:false}")
+    private boolean probe;
+
+    @Value("${campsite.startup.probe-path:/api/search}")
+    private String probePath;
+
+    @Value("${campsite.startup.report-file:}")
+    private String reportFile;
+
+    @Value("${campsite.startup.report-label:startup}")
+    private String reportLabel;
+
+    private final AtomicBoolean firstRequest = new AtomicBoolean();
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onReady(ApplicationReadyEvent event) {
+        long readyMillis = uptime();
+        LOGGER.info("Application ready {} ms after the JVM start", readyMillis);
+        reservationMetrics.recordStartup("ready", readyMillis);
+        if (probe) {
+            // Off the event thread, so the other listeners of the ready event run before the request
+            String port = event.getApplicationContext().getEnvironment().getProperty("local.server.port", "8080");
+            new Thread(() -> probe(port, readyMillis), "startup-probe").start();
+        }
+    }
+
+    @EventListener(ServletRequestHandledEvent.class)
+    public void onRequestHandled(ServletRequestHandledEvent event) {
+        if (firstRequest.compareAndSet(false, true)) {
+            long millis = uptime();
+            LOGGER.info("First request {} {} handled {} ms after the JVM start", event.getMethod(),
+                    event.getRequestUrl(), millis);
+            reservationMetrics.recordStartup("first-request", millis);
+        }
+    }
+
+    private void probe(String port, long readyMillis) {
+        int exitCode = 0;
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + probePath)
+                    .openConnection();
+            int status = connection.getResponseCode();
+            connection.disconnect();
+            long firstRequestMillis = uptime();
+            String line = String.format("%s profiles=%s ready=%dms first-request=%dms status=%d%n", reportLabel,
+                    String.join(",", context.getEnvironment().getActiveProfiles()), readyMillis, firstRequestMillis,
+                    status);
+            LOGGER.info("Startup report: {}", line.trim());
+            if (StringUtils.hasText(reportFile)) {
+                Files.write(Paths.get(reportFile), line.getBytes(StandardCharsets.UTF_8),
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+        } catch (IOException ex) {
+            LOGGER.error("The startup probe of {} failed", probePath, ex);
+            exitCode = 1;
+        }
+        int code = exitCode;
+        System.exit(SpringApplication.exit(context, () -> code));
+    }
+
+    private static long uptime() {
+        return ManagementFactory.getRuntimeMXBean().getUptime();
+    }
+}
@@ -0,0 +1,72 @@
+package com.techtao.campsite.persistence.entity;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import javax.persistence.Version;
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * The entity class for table idempotency_key, one row for each write sent with an idempotency key. The row is
+ * inserted with the outcome, by the transaction of the write when it can, so the first insert wins for every
+ * instance. Both the key and the request are kept as SHA-256 hashes, so any key fits the column.
+ *
+ * @author rantao
+ */
+@Entity
+@Table(name = "idempotency_key", indexes = @Index(name = "createdAt", columnList = "createdAt"))
+@Data
+@NoArgsConstructor
+public class IdempotencyRecord implements Serializable {
+
+    private static final long serialVersionUID = 6043514470367728931L;
+
+    @Id
+    @Column(name = "idempotencyKey", length = 64)
+    private String idempotencyKey;
+
+    @Column(name = "fingerprint", length = 64, nullable = false)
+    private String fingerprint;
+
+    /**
+     * The epoch milliseconds the request started.
+     */
+    @Column(name = "createdAt", nullable = false)
+    private long createdAt;
+
+    /**
+     * The result of the write, null when it was rejected, or while a claim of an earlier version is running.
+     */
+    @Column(name = "result")
+    private String result;
+
+    /**
+     * The {@link com.techtao.campsite.domain.exception.NotAvailableException.Reason} of a rejected write.
+     */
+    @Column(name = "reason", length = 45)
+    private String reason;
+
+    @Column(name = "message")
+    private String message;
+
+    // Null until the row is saved, so saving a new record inserts it and fails on a key used already
+    @Version
+    @Column(name = "version")
+    private Integer version;
+
+    public IdempotencyRecord(String idempotencyKey, String fingerprint, long createdAt) {
+        this.idempotencyKey = idempotencyKey;
+        this.fingerprint = fingerprint;
+        this.createdAt = createdAt;
+    }
+
+    public boolean isDone() {
+        return Objects.nonNull(result) || Objects.nonNull(reason);
+    }
+}
@@ -1,5 +1,6 @@
 package com.techtao.campsite.persistence.entity;
 
+import com.techtao.campsite.domain.model.Sites;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
@@ -7,24 +8,33 @@ import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
 import lombok.ToString;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
 
+import javax.persistence.Cacheable;
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
-import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.Index;
 import javax.persistence.Table;
 import javax.persistence.Version;
 import java.io.Serializable;
-import java.util.Date;
+import java.time.LocalDate;
 
 /**
- * The entity class for table Reservation
+ * The entity class for table Reservation. The dates are DATE columns mapped to {@link LocalDate}, so they mean the
+ * same day whatever the time zone of the server or the connection. The index on the site and dates covers the overlap
+ * queries reading the dates only.
  *
  * @author rantao
  */
 @Entity
-@Table(name = "reservation")
+@Table(name = "reservation", indexes = @Index(name = "site_daterange", columnList = "siteId, startFrom, endTo"))
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "reservation")
 @EqualsAndHashCode
 @ToString
 @Data
@@ -34,12 +44,24 @@ public class Reservation implements Serializable {
 
     private static final long serialVersionUID = 2518874468016926800L;
 
+    // Ids are handed out 50 at a time from the id_generator table, an AUTO_INCREMENT id would make Hibernate send
+    // every insert on its own instead of in JDBC batches
     @Id
-    @GeneratedValue(strategy = GenerationType.AUTO)
+    @GeneratedValue(generator = "reservation-ids")
+    @GenericGenerator(name = "reservation-ids", strategy = "org.hibernate.id.enhanced.TableGenerator", parameters = {
+            @Parameter(name = "table_name", value = "id_generator"),
+            @Parameter(name = "segment_column_name", value = "name"),
+            @Parameter(name = "segment_value", value = "reservation"),
+            @Parameter(name = "value_column_name", value = "nextId"),
+            @Parameter(name = "increment_size", value = "50"),
+            @Parameter(name = "optimizer", value = "pooled-lo")})
     @Getter
     @Setter
     public Long id;
 
+    @Column(name = "siteId")
+    private String siteId = Sites.DEFAULT_SITE_ID;
+
     @Column(name = "username")
     private String username;
 
@@ -47,10 +69,10 @@ public class Reservation implements Serializable {
     private String email;
 
     @Column(name = "startFrom")
-    private Date startFrom;
+    private LocalDate startFrom;
 
     @Column(name = "endTo")
-    private Date endTo;
+    private LocalDate endTo;
 
     @Version
     @Column(name = "version")
@@ -0,0 +1,51 @@
+package com.techtao.campsite.persistence.entity;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+import java.io.Serializable;
+import java.time.LocalDate;
+
+/**
+ * The entity class for table reservation_day, one row for each day held by a reservation.
+ * The unique key on the site and day makes the database reject a second reservation on the same day of a site.
+ *
+ * @author rantao
+ */
+@Entity
+@Table(name = "reservation_day", uniqueConstraints = @UniqueConstraint(name = "site_day_UNIQUE",
+        columnNames = {"siteId", "day"}))
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class ReservationDay implements Serializable {
+
+    private static final long serialVersionUID = -3271482316478305129L;
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.AUTO)
+    private Long id;
+
+    @Column(name = "siteId")
+    private String siteId;
+
+    @Column(name = "day")
+    private LocalDate day;
+
+    @Column(name = "reservationId")
+    private Long reservationId;
+
+    public ReservationDay(String siteId, LocalDate day, Long reservationId) {
+        this.siteId = siteId;
+        this.day = day;
+        this.reservationId = reservationId;
+    }
+}
@@ -0,0 +1,15 @@
+package com.techtao.campsite.persistence.projection;
+
+import java.sql.Date;
+
+/**
+ * A free date range computed by a native query, the DATE columns come back as {@link Date}.
+ *
+ * @author rantao
+ */
+public interface FreeDateRange {
+
+    Date getStartFrom();
+
+    Date getEndTo();
+}
@@ -0,0 +1,15 @@
+package com.techtao.campsite.persistence.projection;
+
+import java.time.LocalDate;
+
+/**
+ * A projection of a reservation to its dates only, used when reading many reservations without loading entities.
+ *
+ * @author rantao
+ */
+public interface ReservationPeriod {
+
+    LocalDate getStartFrom();
+
+    LocalDate getEndTo();
+}
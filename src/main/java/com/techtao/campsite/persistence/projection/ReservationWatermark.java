@@ -0,0 +1,42 @@
+package com.techtao.campsite.persistence.projection;
+
+import lombok.Value;
+
+import java.util.Objects;
+
+/**
+ * A high-water mark of the reservation table: the row count, the sum of the ids and the sum of the versions. An
+ * insert, a delete or an update through JPA changes at least one of them, so two equal marks mean the rows did not
+ * change in between (a change made with SQL must bump the version column to be seen). Every part is a sum, so the
+ * mark of a known change can be added without reading the table again.
+ *
+ * @author rantao
+ */
+@Value
+public class ReservationWatermark {
+
+    long count;
+
+    long ids;
+
+    long versions;
+
+    // The sums of an empty table are null
+    public ReservationWatermark(Long count, Long ids, Long versions) {
+        this.count = Objects.isNull(count) ? 0 : count;
+        this.ids = Objects.isNull(ids) ? 0 : ids;
+        this.versions = Objects.isNull(versions) ? 0 : versions;
+    }
+
+    /**
+     * Add a change of the table to the mark.
+     *
+     * @param count the rows inserted, negative for the rows deleted
+     * @param ids the sum of the ids inserted, negative for the ids deleted
+     * @param versions the sum of the versions added, negative for the versions deleted
+     * @return the mark of the table once the change is committed
+     */
+    public ReservationWatermark plus(long count, long ids, long versions) {
+        return new ReservationWatermark(this.count + count, this.ids + ids, this.versions + versions);
+    }
+}
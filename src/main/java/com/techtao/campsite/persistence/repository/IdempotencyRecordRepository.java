@@ -0,0 +1,24 @@
+package com.techtao.campsite.persistence.repository;
+
+import com.techtao.campsite.persistence.entity.IdempotencyRecord;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * The JPA repository class for {@link IdempotencyRecord}.
+ *
+ * @author rantao
+ */
+@Repository
+public interface IdempotencyRecordRepository extends JpaRepository<IdempotencyRecord, String> {
+
+    @Transactional
+    @Modifying
+    @Query("delete from IdempotencyRecord r where r.createdAt < :createdAt")
+    int deleteAllCreatedBefore(@Param("createdAt") long createdAt);
+
+}
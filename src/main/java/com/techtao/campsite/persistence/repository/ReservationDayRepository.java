@@ -0,0 +1,30 @@
+package com.techtao.campsite.persistence.repository;
+
+import com.techtao.campsite.persistence.entity.ReservationDay;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDate;
+import java.util.Collection;
+
+/**
+ * The JPA repository class for {@link ReservationDay}.
+ *
+ * @author rantao
+ */
+@Repository
+public interface ReservationDayRepository extends JpaRepository<ReservationDay, Long> {
+
+    @Modifying
+    @Query("delete from ReservationDay d where d.reservationId = :reservationId")
+    int deleteAllByReservationId(@Param("reservationId") Long reservationId);
+
+    @Modifying
+    @Query("delete from ReservationDay d where d.reservationId = :reservationId and d.day in :days")
+    int deleteAllByReservationIdAndDayIn(@Param("reservationId") Long reservationId,
+                                         @Param("days") Collection<LocalDate> days);
+
+}
@@ -1,12 +1,23 @@
 package com.techtao.campsite.persistence.repository;
 
 import com.techtao.campsite.persistence.entity.Reservation;
+import com.techtao.campsite.persistence.projection.FreeDateRange;
+import com.techtao.campsite.persistence.projection.ReservationPeriod;
+import com.techtao.campsite.persistence.projection.ReservationWatermark;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
-import java.util.Date;
+import javax.persistence.QueryHint;
+import java.time.LocalDate;
 import java.util.List;
 
+import static org.hibernate.annotations.QueryHints.CACHEABLE;
+import static org.hibernate.annotations.QueryHints.CACHE_REGION;
+
 /**
  * The JPA repository class for {@link Reservation}.
  *
@@ -15,8 +26,68 @@ import java.util.List;
 @Repository
 public interface ReservationRepository extends JpaRepository<Reservation, Long> {
 
-    List<Reservation> findAllByStartFromLessThanEqualAndEndToGreaterThanEqual(Date endTo, Date startFrom);
+    @QueryHints({@QueryHint(name = CACHEABLE, value = "true"),
+            @QueryHint(name = CACHE_REGION, value = "reservation-queries")})
+    List<Reservation> findAllBySiteIdAndStartFromLessThanEqualAndEndToGreaterThanEqual(String siteId,
+                                                                                       LocalDate endTo,
+                                                                                       LocalDate startFrom);
+
+    List<Reservation> findAllByEndToGreaterThanEqual(LocalDate endTo);
+
+    /**
+     * The overlap query without the query cache, for the availability checks of the writes. The query cache is local
+     * to each instance, so it could miss a reservation just committed by another one.
+     */
+    @Query("select r from Reservation r where r.siteId = :siteId "
+            + "and r.startFrom <= :endTo and r.endTo >= :startFrom")
+    List<Reservation> findConflicting(@Param("siteId") String siteId, @Param("startFrom") LocalDate startFrom,
+                                      @Param("endTo") LocalDate endTo);
+
+    /**
+     * Read the first page of the dates of the reservations in a range, ordered by start date. The reservations of a
+     * site never overlap, so their start dates are unique and the next page starts after the last one read.
+     */
+    @Query("select r.startFrom as startFrom, r.endTo as endTo from Reservation r where r.siteId = :siteId "
+            + "and r.startFrom <= :endTo and r.endTo >= :startFrom order by r.startFrom")
+    List<ReservationPeriod> findPeriods(@Param("siteId") String siteId, @Param("startFrom") LocalDate startFrom,
+                                        @Param("endTo") LocalDate endTo, Pageable pageable);
+
+    /**
+     * Read the page of the dates of the reservations in a range which follows the reservation starting on the given
+     * date, ordered by start date.
+     */
+    @Query("select r.startFrom as startFrom, r.endTo as endTo from Reservation r where r.siteId = :siteId "
+            + "and r.startFrom > :after and r.startFrom <= :endTo and r.endTo >= :startFrom order by r.startFrom")
+    List<ReservationPeriod> findPeriodsStartingAfter(@Param("siteId") String siteId, @Param("after") LocalDate after,
+                                                     @Param("startFrom") LocalDate startFrom,
+                                                     @Param("endTo") LocalDate endTo, Pageable pageable);
+
+    /**
+     * Compute the free date ranges of a site in the database. The reservations in the range, plus one marker day on
+     * each side of it, are ordered by start date. A gap lies between the latest end date so far and the next start
+     * date, so no entity is loaded and nothing is sorted in the JVM. Needs window functions, i.e. MySQL 8 or H2.
+     */
+    @Query(value = "select g.coveredTo + interval '1' day as startFrom, g.nextStartFrom - interval '1' day as endTo "
+            + "from (select max(b.endTo) over (order by b.startFrom, b.endTo rows unbounded preceding) as coveredTo, "
+            + "lead(b.startFrom) over (order by b.startFrom, b.endTo) as nextStartFrom "
+            + "from (select r.startFrom, r.endTo from reservation r where r.siteId = :siteId "
+            + "and r.startFrom <= :endTo and r.endTo >= :startFrom "
+            + "union all select cast(:startFrom as date) - interval '1' day, "
+            + "cast(:startFrom as date) - interval '1' day "
+            + "union all select cast(:endTo as date) + interval '1' day, cast(:endTo as date) + interval '1' day) b) g "
+            + "where g.nextStartFrom > g.coveredTo + interval '1' day order by g.coveredTo", nativeQuery = true)
+    List<FreeDateRange> findFreeRanges(@Param("siteId") String siteId, @Param("startFrom") LocalDate startFrom,
+                                       @Param("endTo") LocalDate endTo);
+
+    /**
+     * Read the high-water mark of the table, never from the query cache so the writes of other instances show up.
+     */
+    @Query("select new com.techtao.campsite.persistence.projection.ReservationWatermark(count(r), sum(r.id), "
+            + "sum(r.version)) from Reservation r")
+    ReservationWatermark findWatermark();
 
-    Reservation findByIdAndEmail(Long id, String email);
+    @QueryHints({@QueryHint(name = CACHEABLE, value = "true"),
+            @QueryHint(name = CACHE_REGION, value = "reservation-queries")})
+    Reservation findByIdAndSiteIdAndEmail(Long id, String siteId, String email);
 
 }
@@ -0,0 +1,257 @@
+package com.techtao.campsite.service;
+
+import com.google.common.collect.Lists;
+import com.techtao.campsite.domain.event.ReservationChangedEvent;
+import com.techtao.campsite.domain.exception.NotAvailableException;
+import com.techtao.campsite.domain.model.AvailabilityDelta;
+import com.techtao.campsite.domain.model.DateRange;
+import com.techtao.campsite.metrics.ReservationMetrics;
+import com.techtao.campsite.service.lock.ReservationCoordinator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pushes the committed availability changes of a site to its Server-Sent Events subscribers, so calendars stay fresh
+ * without polling the search. It follows the changes applied to the {@link OccupancyIndex}, so the days booked or
+ * freed by other instances reach the subscribers too once a reload of the index has found them. Every subscriber has
+ * a bounded buffer drained by a small pool of sender threads, the committing thread never writes to a client. A
+ * subscriber whose buffer fills up is dropped and should search again when it reconnects.
+ *
+ * @author rantao
+ */
+@Component
+public class AvailabilityBroadcaster {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AvailabilityBroadcaster.class);
+
+    private static final Message HEARTBEAT = new Message(0, null);
+
+    @Autowired
+    private ReservationMetrics reservationMetrics;
+
+    @Autowired
+    private OccupancyIndex occupancyIndex;
+
+    @Value("${reservation.sse.buffer-size:64}")
+    private int bufferSize;
+
+    @Value("${reservation.sse.max-subscribers:10000}")
+    private int maxSubscribers;
+
+    @Value("${reservation.sse.senders:4}")
+    private int senders;
+
+    @Value("${reservation.sse.timeout-minutes:30}")
+    private long timeoutMinutes;
+
+    @Value("${reservation.sse.heartbeat-seconds:15}")
+    private long heartbeatSeconds;
+
+    private final Map<String, Set<Subscriber>> subscribersBySite = new ConcurrentHashMap<>();
+    private final AtomicInteger subscriberCount = new AtomicInteger();
+    private final AtomicLong sequence = new AtomicLong();
+    private ExecutorService senderPool;
+    private ScheduledExecutorService heartbeat;
+
+    @PostConstruct
+    public void start() {
+        AtomicInteger threads = new AtomicInteger();
+        senderPool = Executors.newFixedThreadPool(senders, runnable -> {
+            Thread sender = new Thread(runnable, "availability-sender-" + threads.getAndIncrement());
+            sender.setDaemon(true);
+            return sender;
+        });
+        heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "availability-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Keeps idle connections open through proxies and finds the clients which went away
+        heartbeat.scheduleAtFixedRate(() -> subscribersBySite.values()
+                        .forEach(subscribers -> subscribers.forEach(subscriber -> subscriber.offer(HEARTBEAT))),
+                heartbeatSeconds, heartbeatSeconds, TimeUnit.SECONDS);
+        occupancyIndex.addAppliedListener(this::onReservationChanged);
+    }
+
+    @PreDestroy
+    public void stop() {
+        heartbeat.shutdownNow();
+        senderPool.shutdownNow();
+        subscribersBySite.values()
+                .forEach(subscribers -> subscribers.forEach(subscriber -> subscriber.emitter.complete()));
+    }
+
+    /**
+     * Subscribe to the availability changes of a site.
+     *
+     * @param siteId the campsite
+     * @return the {@link SseEmitter} to return from the controller
+     * @throws NotAvailableException when there are too many subscribers already
+     */
+    public SseEmitter subscribe(String siteId) throws NotAvailableException {
+        if (subscriberCount.incrementAndGet() > maxSubscribers) {
+            subscriberCount.decrementAndGet();
+            throw new NotAvailableException(NotAvailableException.Reason.OVERLOADED,
+                    "Too many subscribers, please try again.");
+        }
+
+        SseEmitter emitter = new SseEmitter(TimeUnit.MINUTES.toMillis(timeoutMinutes));
+        Subscriber subscriber = new Subscriber(siteId, emitter);
+        subscribersBySite.computeIfAbsent(siteId, key -> ConcurrentHashMap.newKeySet()).add(subscriber);
+        emitter.onCompletion(() -> remove(subscriber));
+        emitter.onTimeout(() -> remove(subscriber));
+        emitter.onError(ex -> remove(subscriber));
+        return emitter;
+    }
+
+    public int getSubscriberCount() {
+        return subscriberCount.get();
+    }
+
+    // Called by the index while the site is locked, it only queues the delta
+    private void onReservationChanged(ReservationChangedEvent event) {
+        Set<Subscriber> subscribers = subscribersBySite.get(event.getSiteId());
+        if (Objects.isNull(subscribers) || subscribers.isEmpty()) {
+            return;
+        }
+
+        Set<LocalDate> before = daysOf(event.getPrevious());
+        Set<LocalDate> after = daysOf(event.getCurrent());
+        AvailabilityDelta delta = new AvailabilityDelta(event.getSiteId(), rangesOf(after, before),
+                rangesOf(before, after));
+        Message message = new Message(sequence.incrementAndGet(), delta);
+        subscribers.forEach(subscriber -> subscriber.offer(message));
+    }
+
+    private boolean remove(Subscriber subscriber) {
+        subscriber.closed = true;
+        Set<Subscriber> subscribers = subscribersBySite.get(subscriber.siteId);
+        if (Objects.nonNull(subscribers) && subscribers.remove(subscriber)) {
+            subscriberCount.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    private static Set<LocalDate> daysOf(DateRange dateRange) {
+        return Objects.isNull(dateRange) ? Collections.emptySet()
+                : ReservationCoordinator.daysOf(dateRange.startFrom, dateRange.endTo);
+    }
+
+    // The days of the first set missing from the second one, merged into ranges
+    private static List<DateRange> rangesOf(Set<LocalDate> days, Set<LocalDate> excluded) {
+        List<DateRange> ranges = Lists.newArrayList();
+        DateRange range = null;
+        for (LocalDate day : new TreeSet<>(days)) {
+            if (excluded.contains(day)) {
+                continue;
+            }
+            if (Objects.nonNull(range) && range.endTo.plusDays(1).isEqual(day)) {
+                range.endTo = day;
+            } else {
+                range = new DateRange(day, day);
+                ranges.add(range);
+            }
+        }
+        return ranges;
+    }
+
+    private static class Message {
+        private final long id;
+        private final AvailabilityDelta delta;
+
+        private Message(long id, AvailabilityDelta delta) {
+            this.id = id;
+            this.delta = delta;
+        }
+
+        private SseEmitter.SseEventBuilder toEvent() {
+            if (Objects.isNull(delta)) {
+                return SseEmitter.event().comment("heartbeat");
+            }
+            return SseEmitter.event().id(String.valueOf(id)).name("availability").data(delta);
+        }
+    }
+
+    private class Subscriber {
+
+        private final String siteId;
+        private final SseEmitter emitter;
+        private final BlockingQueue<Message> buffer = new ArrayBlockingQueue<>(bufferSize);
+        private final AtomicBoolean draining = new AtomicBoolean();
+        private volatile boolean closed;
+
+        private Subscriber(String siteId, SseEmitter emitter) {
+            this.siteId = siteId;
+            this.emitter = emitter;
+        }
+
+        private void offer(Message message) {
+            if (closed) {
+                return;
+            }
+            if (!buffer.offer(message)) {
+                drop("slow");
+                return;
+            }
+            if (draining.compareAndSet(false, true)) {
+                try {
+                    senderPool.execute(this::drain);
+                } catch (RejectedExecutionException ex) {
+                    draining.set(false);
+                }
+            }
+        }
+
+        // Only one sender drains a subscriber at a time, so the messages keep their order
+        private void drain() {
+            do {
+                Message message;
+                while (!closed && Objects.nonNull(message = buffer.poll())) {
+                    try {
+                        emitter.send(message.toEvent());
+                    } catch (IOException | IllegalStateException ex) {
+                        LOGGER.debug("Could not send to an availability subscriber of {}", siteId, ex);
+                        drop("error");
+                        return;
+                    }
+                }
+                draining.set(false);
+            } while (!closed && !buffer.isEmpty() && draining.compareAndSet(false, true));
+        }
+
+        private void drop(String reason) {
+            if (remove(this)) {
+                buffer.clear();
+                reservationMetrics.recordSubscriberDropped(reason);
+                emitter.complete();
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.techtao.campsite.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.techtao.campsite.domain.model.DateRange;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the serialized search results by site and date window together with the availability version of the site
+ * they were built on, so repeated searches for an unchanged window are answered without searching or serializing
+ * again. Every site has its own responses, bounded on their own, so a busy site never evicts the others. While the
+ * index lags behind the reservation table (see {@link OccupancyIndex#isFresh()}) nothing is cached or tagged, the
+ * searches go to the database.
+ *
+ * @author rantao
+ */
+@Component
+public class AvailabilityResponseCache {
+
+    @Autowired
+    private ReservationService reservationService;
+
+    @Autowired
+    private OccupancyIndex occupancyIndex;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Value("${reservation.search-cache.size:1024}")
+    private int maxSize;
+
+    private final Map<String, Map<String, Response>> responsesBySite = new ConcurrentHashMap<>();
+    // The versions count from zero in every JVM, so a tag of another instance or of an earlier start never matches
+    private final String instanceId = UUID.randomUUID().toString();
+
+    /**
+     * Build the ETag of a search window at the current availability version of the site on this instance.
+     *
+     * @param siteId the campsite
+     * @param startFrom the search start date
+     * @param endTo the search end date
+     * @return the quoted ETag, null while the index lags behind the reservation table
+     */
+    public String eTagOf(String siteId, LocalDate startFrom, LocalDate endTo) {
+        long version = occupancyIndex.getVersion(siteId);
+        if (!occupancyIndex.isFresh()) {
+            return null;
+        }
+        return eTagOf(siteId, version, startFrom, endTo);
+    }
+
+    /**
+     * Find the serialized available date ranges of a search window, searching again only when the cached
+     * response was built on an older availability version.
+     *
+     * @param siteId the campsite
+     * @param startFrom the search start date
+     * @param endTo the search end date
+     * @return the {@link Response} with its ETag, which is null while the index lags behind the reservation table
+     * @throws JsonProcessingException when the date ranges could not be serialized
+     */
+    public Response search(String siteId, LocalDate startFrom, LocalDate endTo) throws JsonProcessingException {
+        long version = occupancyIndex.getVersion(siteId);
+        if (!occupancyIndex.isFresh()) {
+            return new Response(version, null,
+                    objectMapper.writeValueAsString(reservationService.searchForReservation(siteId, startFrom, endTo)));
+        }
+
+        Map<String, Response> responses = responsesBySite.computeIfAbsent(siteId, key -> new ConcurrentHashMap<>());
+        String key = startFrom + "/" + endTo;
+        Response response = responses.get(key);
+        if (Objects.nonNull(response) && response.version == version) {
+            return response;
+        }
+
+        List<DateRange> dateRanges = reservationService.searchForReservation(siteId, startFrom, endTo);
+        response = new Response(version, eTagOf(siteId, version, startFrom, endTo),
+                objectMapper.writeValueAsString(dateRanges));
+        if (responses.size() >= maxSize) {
+            responses.clear();
+        }
+        responses.put(key, response);
+        return response;
+    }
+
+    private String eTagOf(String siteId, long version, LocalDate startFrom, LocalDate endTo) {
+        return "\"" + instanceId + "-" + siteId + "-" + version + "-" + startFrom + "-" + endTo + "\"";
+    }
+
+    @Getter
+    @AllArgsConstructor
+    public static class Response {
+        private final long version;
+        private final String eTag;
+        private final String body;
+    }
+}
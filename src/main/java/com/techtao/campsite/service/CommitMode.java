@@ -0,0 +1,19 @@
+package com.techtao.campsite.service;
+
+/**
+ * The ways a reservation could be committed without double booking, set by {@code reservation.commit-mode}.
+ *
+ * @author rantao
+ */
+public enum CommitMode {
+
+    /**
+     * Lock the days in the JVM, check for overlapping reservations and then save.
+     */
+    LOCK,
+
+    /**
+     * Save one reservation_day row per day and let the unique key on the day reject conflicts.
+     */
+    DAY_SLOT
+}
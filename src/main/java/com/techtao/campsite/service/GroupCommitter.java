@@ -0,0 +1,274 @@
+package com.techtao.campsite.service;
+
+import com.techtao.campsite.domain.event.ReservationChangedEvent;
+import com.techtao.campsite.domain.exception.NotAvailableException;
+import com.techtao.campsite.domain.model.DateRange;
+import com.techtao.campsite.metrics.ReservationMetrics;
+import com.techtao.campsite.persistence.entity.Reservation;
+import com.techtao.campsite.persistence.repository.ReservationRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saves the reservations which passed the availability check in groups, one transaction and one commit for up to
+ * {@code reservation.group-commit.max-batch} of them or whatever arrived within
+ * {@code reservation.group-commit.max-delay-millis}. The days of a queued reservation stay claimed in memory until
+ * its group is committed, so the availability checks of the other writes see them before the database does.
+ * When a group fails, its reservations are saved one by one so only the failing one is rejected. The claims are local
+ * to the instance and the day leases end with the check, so it refuses to start unless the days are locked in-process,
+ * i.e. with a single instance writing.
+ *
+ * @author rantao
+ */
+@Component
+public class GroupCommitter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(GroupCommitter.class);
+
+    @Autowired
+    private ReservationRepository reservationRepository;
+
+    @Autowired
+    private ApplicationEventPublisher eventPublisher;
+
+    @Autowired
+    private ReplicationLagGuard replicationLagGuard;
+
+    @Autowired
+    private ReservationMetrics reservationMetrics;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Value("${reservation.group-commit.enabled:false}")
+    private boolean enabled;
+
+    @Value("${reservation.group-commit.max-batch:50}")
+    private int maxBatch;
+
+    @Value("${reservation.group-commit.max-delay-millis:5}")
+    private long maxDelayMillis;
+
+    @Value("${reservation.group-commit.capacity:1000}")
+    private int capacity;
+
+    @Value("${reservation.coordinator:in-process}")
+    private String coordinator;
+
+    private final Map<String, Set<LocalDate>> claimsBySite = new ConcurrentHashMap<>();
+    private BlockingQueue<Pending> queue;
+    private TransactionTemplate transactionTemplate;
+    private Thread flusher;
+    private volatile boolean running;
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        if (!"in-process".equals(coordinator)) {
+            // Another instance would neither see the claims nor wait for a lease, and could book the same days
+            throw new IllegalStateException("reservation.group-commit.enabled needs reservation.coordinator=in-process");
+        }
+        queue = new ArrayBlockingQueue<>(capacity);
+        transactionTemplate = new TransactionTemplate(transactionManager);
+        running = true;
+        flusher = new Thread(this::flushLoop, "reservation-group-committer");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        if (Objects.nonNull(flusher)) {
+            flusher.interrupt();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Check if any of the days of a site is held by a reservation waiting for its group to be committed.
+     *
+     * @param siteId the site
+     * @param days the days to look up
+     * @return true when any of the days is claimed
+     */
+    public boolean isClaimed(String siteId, Collection<LocalDate> days) {
+        Set<LocalDate> claims = claimsBySite.get(siteId);
+        if (Objects.isNull(claims)) {
+            return false;
+        }
+        synchronized (claims) {
+            return !Collections.disjoint(claims, days);
+        }
+    }
+
+    /**
+     * Claim the days of a checked reservation and queue it for the next group.
+     *
+     * @param reservation the reservation to save
+     * @param days the days of the reservation
+     * @return the id of the reservation, once its group is committed
+     * @throws NotAvailableException when a day is claimed already or the queue is full
+     */
+    public CompletableFuture<Long> submit(Reservation reservation, Set<LocalDate> days) throws NotAvailableException {
+        Set<LocalDate> claims = claimsBySite.computeIfAbsent(reservation.getSiteId(), key -> new HashSet<>());
+        synchronized (claims) {
+            if (!Collections.disjoint(claims, days)) {
+                throw new NotAvailableException(NotAvailableException.Reason.CONFLICT,
+                        "There are reservations already in this date range");
+            }
+            claims.addAll(days);
+        }
+
+        Pending pending = new Pending(reservation, days);
+        if (!queue.offer(pending)) {
+            release(pending);
+            throw new NotAvailableException(NotAvailableException.Reason.OVERLOADED,
+                    "Too many requests, please try again.");
+        }
+        return pending.future;
+    }
+
+    /**
+     * Take a reservation whose caller gave up waiting out of the queue and release its days, so a retry does not
+     * conflict with it.
+     *
+     * @param id the future returned by {@link #submit(Reservation, Set)}
+     * @return false when its group is being committed already, the future then completes with the outcome
+     */
+    public boolean cancel(CompletableFuture<Long> id) {
+        for (Pending pending : queue) {
+            if (pending.future == id) {
+                if (!queue.remove(pending)) {
+                    return false;
+                }
+                fail(pending, new NotAvailableException(NotAvailableException.Reason.TIMEOUT,
+                        "Timeout, please try again."));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void flushLoop() {
+        while (running) {
+            List<Pending> group = new ArrayList<>();
+            try {
+                group.add(queue.take());
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+                while (group.size() < maxBatch) {
+                    Pending next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (Objects.isNull(next)) {
+                        break;
+                    }
+                    group.add(next);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failAll(group);
+                return;
+            }
+            reservationMetrics.recordGroupCommit(group.size());
+            flush(group);
+        }
+        failAll(new ArrayList<>());
+    }
+
+    private void failAll(List<Pending> group) {
+        queue.drainTo(group);
+        group.forEach(pending -> fail(pending, new NotAvailableException(NotAvailableException.Reason.SYSTEM_ERROR,
+                "System error, please try again.")));
+    }
+
+    private void flush(List<Pending> group) {
+        try {
+            transactionTemplate.execute(status -> {
+                for (Pending pending : group) {
+                    Reservation reservation = reservationRepository.save(pending.reservation);
+                    eventPublisher.publishEvent(new ReservationChangedEvent(ReservationChangedEvent.Type.RESERVED,
+                            reservation.getSiteId(), reservation.getId(), null,
+                            new DateRange(reservation.getStartFrom(), reservation.getEndTo()),
+                            reservation.getVersion()));
+                }
+                return null;
+            });
+        } catch (RuntimeException ex) {
+            if (group.size() == 1) {
+                fail(group.get(0), rejectionOf(ex));
+                return;
+            }
+            LOGGER.warn("Could not commit a group of {} reservations, saving them one by one", group.size(), ex);
+            for (Pending pending : group) {
+                // The ids given by the rolled back inserts are gone with them
+                pending.reservation.setId(null);
+                pending.reservation.setVersion(0);
+                flush(Collections.singletonList(pending));
+            }
+            return;
+        }
+
+        for (Pending pending : group) {
+            replicationLagGuard.recordWrite(pending.reservation.getEmail());
+            release(pending);
+            pending.future.complete(pending.reservation.getId());
+        }
+    }
+
+    // The days were checked and claimed already, so nothing but a failure of the database is left, the cause stays
+    // in the log
+    private static NotAvailableException rejectionOf(RuntimeException ex) {
+        LOGGER.warn("Could not commit a reservation", ex);
+        return new NotAvailableException(NotAvailableException.Reason.SYSTEM_ERROR, "System error, please try again.");
+    }
+
+    private void fail(Pending pending, NotAvailableException ex) {
+        release(pending);
+        pending.future.completeExceptionally(ex);
+    }
+
+    private void release(Pending pending) {
+        Set<LocalDate> claims = claimsBySite.get(pending.reservation.getSiteId());
+        synchronized (claims) {
+            claims.removeAll(pending.days);
+        }
+    }
+
+    private static class Pending {
+        private final Reservation reservation;
+        private final Set<LocalDate> days;
+        private final CompletableFuture<Long> future = new CompletableFuture<>();
+
+        private Pending(Reservation reservation, Set<LocalDate> days) {
+            this.reservation = reservation;
+            this.days = days;
+        }
+    }
+}
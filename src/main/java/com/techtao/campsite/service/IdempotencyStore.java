@@ -0,0 +1,364 @@
+package com.techtao.campsite.service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import com.techtao.campsite.config.ReadWriteRoutingDataSource;
+import com.techtao.campsite.domain.event.ReservationChangedEvent;
+import com.techtao.campsite.domain.exception.IdempotencyKeyReusedException;
+import com.techtao.campsite.domain.exception.NotAvailableException;
+import com.techtao.campsite.metrics.ReservationMetrics;
+import com.techtao.campsite.persistence.entity.IdempotencyRecord;
+import com.techtao.campsite.persistence.repository.IdempotencyRecordRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionPhase;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Remembers the outcome of the writes sent with an idempotency key, so a retried request gets the first outcome
+ * without being validated, locked or saved again. The outcomes of this instance are answered from memory, a retry
+ * arriving while the first request still runs here waits for it. The idempotency_key table holds the outcomes for the
+ * other instances: a successful write inserts its record in its own transaction, right before the commit, so the
+ * reservation and its record are committed together and a concurrent retry on another instance, which inserts the
+ * same key, is rolled back and replays the first outcome instead. A write committed outside the calling thread,
+ * e.g. by the group committer, and a rejection record it right after. A key sent again with different parameters is
+ * refused with {@link IdempotencyKeyReusedException}. Retryable rejections, e.g. lock timeouts, are not remembered,
+ * so the retry does run again.
+ *
+ * @author rantao
+ */
+@Component
+public class IdempotencyStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(IdempotencyStore.class);
+
+    private static final long POLL_MILLIS = 50;
+
+    @Autowired
+    private ReservationMetrics reservationMetrics;
+
+    @Autowired
+    private IdempotencyRecordRepository idempotencyRecordRepository;
+
+    @Value("${reservation.idempotency.size:100000}")
+    private long size;
+
+    @Value("${reservation.idempotency.ttl-minutes:60}")
+    private long ttlMinutes;
+
+    @Value("${reservation.idempotency.wait-seconds:10}")
+    private long waitSeconds;
+
+    // Instances before the records were written with the write claimed the key first, their claims are waited for
+    @Value("${reservation.idempotency.claim-seconds:30}")
+    private long claimSeconds;
+
+    // The record of the write the calling thread runs, inserted by the transaction committing it
+    private final ThreadLocal<Pending> pending = new ThreadLocal<>();
+
+    // The outcomes of this instance, so its own retries neither query the table nor miss a running first request
+    private ConcurrentMap<String, Outcome> outcomes;
+    private ScheduledExecutorService purger;
+
+    @PostConstruct
+    public void init() {
+        Cache<String, Outcome> cache = CacheBuilder.newBuilder()
+                .maximumSize(size)
+                .expireAfterWrite(ttlMinutes, TimeUnit.MINUTES)
+                .build();
+        outcomes = cache.asMap();
+        purger = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "idempotency-purger");
+            thread.setDaemon(true);
+            return thread;
+        });
+        purger.scheduleWithFixedDelay(this::purge, 1, 1, TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    public void stop() {
+        purger.shutdownNow();
+    }
+
+    /**
+     * Run a write once per key.
+     *
+     * @param operation the operation name, e.g. reserve
+     * @param key the idempotency key, together with the site
+     * @param request everything identifying the request, a retry must send the same
+     * @param call the write to run
+     * @return the result of the first call with this key
+     * @throws NotAvailableException the rejection of the first call with this key
+     * @throws IdempotencyKeyReusedException when the key was first sent with another request
+     */
+    public String execute(String operation, String key, String request, ReservationMetrics.ReservationCall<String> call)
+            throws NotAvailableException {
+        String id = hash(operation + "/" + key);
+        Outcome outcome = new Outcome(hash(request));
+        Outcome previous = outcomes.putIfAbsent(id, outcome);
+        if (Objects.nonNull(previous)) {
+            checkSameRequest(previous.fingerprint, outcome.fingerprint);
+            reservationMetrics.recordIdempotentReplay(operation);
+            return await(previous.future);
+        }
+
+        Pending write = new Pending(new IdempotencyRecord(id, outcome.fingerprint, System.currentTimeMillis()));
+        try {
+            IdempotencyRecord existing = findLive(id);
+            if (Objects.nonNull(existing)) {
+                // Written by another instance, or by this one before the outcome left the memory
+                return replay(id, operation, outcome, existing);
+            }
+        } catch (NotAvailableException | RuntimeException ex) {
+            forget(id, outcome, ex);
+            throw ex;
+        }
+
+        IdempotencyRecord first;
+        pending.set(write);
+        try {
+            String result = call.call();
+            write.record.setResult(result);
+            first = write.written ? null : saveOutcome(write.record);
+            if (Objects.isNull(first)) {
+                outcome.future.complete(result);
+                return result;
+            }
+        } catch (NotAvailableException ex) {
+            if (ex.isRetryable()) {
+                forget(id, outcome, ex);
+                throw ex;
+            }
+            write.record.setReason(ex.getReason().name());
+            write.record.setMessage(ex.getMessage());
+            first = saveOutcome(write.record);
+            if (Objects.isNull(first)) {
+                outcome.future.completeExceptionally(ex);
+                throw ex;
+            }
+        } catch (RuntimeException ex) {
+            first = write.duplicate ? find(id) : null;
+            if (Objects.isNull(first)) {
+                forget(id, outcome, ex);
+                throw ex;
+            }
+        } finally {
+            pending.remove();
+        }
+        // The first request committed the key meanwhile on another instance, this one was rolled back or only met
+        // its reservation
+        return replay(id, operation, outcome, first);
+    }
+
+    /**
+     * Insert the record of the write the calling thread runs, in the transaction which commits it. A key inserted
+     * meanwhile by another instance fails the insert and rolls the write back.
+     */
+    @TransactionalEventListener(phase = TransactionPhase.BEFORE_COMMIT)
+    public void onReservationCommitting(ReservationChangedEvent event) {
+        Pending write = pending.get();
+        if (Objects.isNull(write) || Objects.nonNull(write.record.getResult())
+                || Objects.isNull(event.getReservationId())) {
+            return;
+        }
+        // Both the reservation and the update answer with the id of the reservation
+        write.record.setResult(String.valueOf(event.getReservationId()));
+        write.record.setVersion(null);
+        try {
+            idempotencyRecordRepository.saveAndFlush(write.record);
+        } catch (RuntimeException ex) {
+            // The flush also fails on a version conflict of the write, which is retried in a new transaction
+            write.record.setResult(null);
+            write.duplicate = ex instanceof DataIntegrityViolationException;
+            throw ex;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(int status) {
+                if (status == STATUS_COMMITTED) {
+                    write.written = true;
+                } else {
+                    write.record.setResult(null);
+                }
+            }
+        });
+    }
+
+    private String replay(String id, String operation, Outcome outcome, IdempotencyRecord existing)
+            throws NotAvailableException {
+        try {
+            checkSameRequest(existing.getFingerprint(), outcome.fingerprint);
+            reservationMetrics.recordIdempotentReplay(operation);
+            String result = await(existing);
+            outcome.future.complete(result);
+            return result;
+        } catch (NotAvailableException | RuntimeException ex) {
+            forget(id, outcome, ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * Find the record of a key, a claim of an earlier instance older than the claim lease is dropped.
+     *
+     * @return the record of the request which used the key first, null when there is none
+     */
+    private IdempotencyRecord findLive(String idempotencyKey) {
+        IdempotencyRecord existing = find(idempotencyKey);
+        if (Objects.isNull(existing) || existing.isDone()
+                || existing.getCreatedAt() >= System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(claimSeconds)) {
+            return existing;
+        }
+        // Left behind by an instance which stopped before the outcome was written
+        release(existing);
+        return null;
+    }
+
+    /**
+     * Insert the outcome of a write which did not commit it with its own transaction.
+     *
+     * @return null once it is inserted, otherwise the record inserted first by another instance
+     */
+    private IdempotencyRecord saveOutcome(IdempotencyRecord record) {
+        try {
+            record.setVersion(null);
+            idempotencyRecordRepository.saveAndFlush(record);
+            return null;
+        } catch (DataIntegrityViolationException ex) {
+            return find(record.getIdempotencyKey());
+        } catch (RuntimeException ex) {
+            // A retry on another instance runs the request again and finds what it did
+            LOGGER.warn("Could not record the outcome of idempotency key {}", record.getIdempotencyKey(), ex);
+            return null;
+        }
+    }
+
+    // Waits for the outcome of a claim made by an earlier instance
+    private String await(IdempotencyRecord existing) throws NotAvailableException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(waitSeconds);
+        IdempotencyRecord record = existing;
+        while (Objects.nonNull(record) && !record.isDone()) {
+            if (System.nanoTime() - deadline > 0) {
+                throw new NotAvailableException(NotAvailableException.Reason.TIMEOUT, "Timeout, please try again.");
+            }
+            try {
+                Thread.sleep(POLL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new NotAvailableException(NotAvailableException.Reason.SYSTEM_ERROR,
+                        "System error, please try again.");
+            }
+            record = find(existing.getIdempotencyKey());
+        }
+        if (Objects.isNull(record)) {
+            // The first request failed and released the key
+            throw new NotAvailableException(NotAvailableException.Reason.CONCURRENT_UPDATE,
+                    "The first request with this key failed, please try again.");
+        }
+        if (Objects.nonNull(record.getResult())) {
+            return record.getResult();
+        }
+        throw new NotAvailableException(NotAvailableException.Reason.valueOf(record.getReason()),
+                record.getMessage());
+    }
+
+    private IdempotencyRecord find(String idempotencyKey) {
+        // A replica could still miss the claim
+        return ReadWriteRoutingDataSource.onPrimary(() -> idempotencyRecordRepository.findById(idempotencyKey))
+                .orElse(null);
+    }
+
+    private void release(IdempotencyRecord record) {
+        try {
+            idempotencyRecordRepository.delete(record);
+        } catch (RuntimeException ex) {
+            LOGGER.warn("Could not release idempotency key {}", record.getIdempotencyKey(), ex);
+        }
+    }
+
+    private void forget(String id, Outcome outcome, Exception ex) {
+        outcomes.remove(id, outcome);
+        outcome.future.completeExceptionally(ex);
+    }
+
+    private void purge() {
+        try {
+            int purged = idempotencyRecordRepository.deleteAllCreatedBefore(expiredBefore());
+            LOGGER.debug("Purged {} expired idempotency keys", purged);
+        } catch (RuntimeException ex) {
+            LOGGER.warn("Could not purge the expired idempotency keys", ex);
+        }
+    }
+
+    private long expiredBefore() {
+        return System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(ttlMinutes);
+    }
+
+    private static void checkSameRequest(String fingerprint, String other) {
+        if (!fingerprint.equals(other)) {
+            throw new IdempotencyKeyReusedException();
+        }
+    }
+
+    private static String hash(String value) {
+        return Hashing.sha256().hashString(value, StandardCharsets.UTF_8).toString();
+    }
+
+    private String await(CompletableFuture<String> outcome) throws NotAvailableException {
+        try {
+            return outcome.get(waitSeconds, TimeUnit.SECONDS);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof NotAvailableException) {
+                throw (NotAvailableException) ex.getCause();
+            }
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new IllegalStateException(ex.getCause());
+        } catch (TimeoutException ex) {
+            throw new NotAvailableException(NotAvailableException.Reason.TIMEOUT, "Timeout, please try again.");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NotAvailableException(NotAvailableException.Reason.SYSTEM_ERROR,
+                    "System error, please try again.");
+        }
+    }
+
+    private static class Pending {
+        private final IdempotencyRecord record;
+        private boolean written;
+        private boolean duplicate;
+
+        private Pending(IdempotencyRecord record) {
+            this.record = record;
+        }
+    }
+
+    private static class Outcome {
+        private final String fingerprint;
+        private final CompletableFuture<String> future = new CompletableFuture<>();
+
+        private Outcome(String fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+    }
+}
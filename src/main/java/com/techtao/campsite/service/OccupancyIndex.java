@@ -0,0 +1,560 @@
+package com.techtao.campsite.service;
+
+import com.google.common.collect.Lists;
+import com.techtao.campsite.domain.event.ReservationChangedEvent;
+import com.techtao.campsite.domain.model.DateRange;
+import com.techtao.campsite.persistence.entity.Reservation;
+import com.techtao.campsite.persistence.projection.ReservationWatermark;
+import com.techtao.campsite.persistence.repository.ReservationRepository;
+import org.hibernate.SessionFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionPhase;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.persistence.EntityManagerFactory;
+import java.time.LocalDate;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * An in-memory index of the occupied days of each site, one bit per epoch day starting from the day the index was
+ * built. It is restored from the reservation journal or loaded from the repository once the application is ready,
+ * and then kept in step with the committed reservation changes, so searches inside the indexed horizon never need to
+ * query the database. Every site has its own bits, lock and version, so a change on one site never blocks or
+ * invalidates the searches of another. Rows written any other way (other instances, SQL, the repository directly)
+ * are caught by comparing the high-water mark of the table at most every
+ * {@code reservation.index.max-staleness-millis} with the mark the index expects: the committed changes of this
+ * instance move the expected mark along, so only a foreign change makes them differ. Then the Hibernate caches of the
+ * reservations are evicted and searches go to the database until the index is reloaded in the background. The days a
+ * reload finds booked or freed reach the applied listeners as changes without a reservation id, like the committed
+ * changes do.
+ *
+ * @author rantao
+ */
+@Component
+public class OccupancyIndex {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(OccupancyIndex.class);
+
+    // The last day a bit can stand for, the days after it are never marked and always free
+    private static final long MAX_OFFSET = Integer.MAX_VALUE - 1;
+
+    @Autowired
+    private ReservationRepository reservationRepository;
+
+    // Absent outside a JPA context, e.g. in the benchmarks
+    @Autowired(required = false)
+    private EntityManagerFactory entityManagerFactory;
+
+    @Value("${reservation.index.max-staleness-millis:1000}")
+    private long maxStalenessMillis;
+
+    private final Map<String, SiteIndex> sites = new ConcurrentHashMap<>();
+    // Changes of different sites share the read side, a load takes the write side so no change is lost under it
+    private final ReentrantReadWriteLock loadLock = new ReentrantReadWriteLock();
+    private final long baseEpochDay = LocalDate.now().toEpochDay();
+    private final List<Consumer<ReservationChangedEvent>> appliedListeners = new CopyOnWriteArrayList<>();
+    private final List<Runnable> loadedListeners = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean checking = new AtomicBoolean();
+    private final AtomicBoolean reloading = new AtomicBoolean();
+    private ExecutorService reloader;
+    private volatile boolean ready = false;
+    private volatile boolean stale = false;
+    private volatile long checkedAt = System.nanoTime();
+    // The mark the table should have once every change applied so far is committed
+    private final AtomicReference<ReservationWatermark> watermark = new AtomicReference<>();
+    // The local changes between their commit and their application, the table shows them before the index does
+    private final AtomicLong committing = new AtomicLong();
+    private final AtomicLong committed = new AtomicLong();
+
+    @PostConstruct
+    public void start() {
+        reloader = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "occupancy-index-reloader");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void stop() {
+        reloader.shutdownNow();
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void load() {
+        if (ready) {
+            // Restored from the reservation journal already
+            return;
+        }
+        reload();
+    }
+
+    /**
+     * Load every reservation from the repository again. The searches keep using the current days of a site until
+     * its new ones are in place, and the changes committed meanwhile wait for the load, so none is lost.
+     *
+     * @return false when the reservations could not be read, the index is left as it was
+     */
+    public boolean reload() {
+        loadLock.writeLock().lock();
+        try {
+            // Read before the rows, a write landing in between only costs one more reload
+            ReservationWatermark current = reservationRepository.findWatermark();
+            List<Reservation> reservations = reservationRepository.findAllByEndToGreaterThanEqual(
+                    LocalDate.ofEpochDay(baseEpochDay));
+            Map<String, List<Reservation>> reservationsBySite = reservations.stream()
+                    .collect(Collectors.groupingBy(Reservation::getSiteId));
+            Set<String> siteIds = new HashSet<>(sites.keySet());
+            siteIds.addAll(reservationsBySite.keySet());
+            // The first load has nothing to compare with
+            boolean publish = ready;
+            siteIds.forEach(siteId -> siteOf(siteId).load(siteId,
+                    reservationsBySite.getOrDefault(siteId, Collections.emptyList()), publish));
+            watermark.set(current);
+            checkedAt = System.nanoTime();
+            stale = false;
+            ready = true;
+            LOGGER.info("Occupancy index loaded with {} reservations of {} sites", reservations.size(),
+                    reservationsBySite.size());
+            loadedListeners.forEach(Runnable::run);
+            return true;
+        } catch (RuntimeException ex) {
+            LOGGER.warn("Could not load the occupancy index, searches will use the database", ex);
+            return false;
+        } finally {
+            loadLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Count a change as committing until it is applied, so a comparison of the marks meanwhile is not taken for a
+     * foreign change.
+     */
+    @TransactionalEventListener(phase = TransactionPhase.BEFORE_COMMIT)
+    public void onReservationCommitting(ReservationChangedEvent event) {
+        committing.incrementAndGet();
+        // Registered after the listener applying the change, so it runs once the change is applied or rolled back
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(int status) {
+                committed.incrementAndGet();
+            }
+        });
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onReservationChanged(ReservationChangedEvent event) {
+        loadLock.readLock().lock();
+        try {
+            siteOf(event.getSiteId()).apply(event);
+            advance(event);
+        } finally {
+            loadLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Rebuild the index from a copy of the occupied days and replay the changes made after it was taken.
+     *
+     * @param fromEpochDay the epoch day of the first bit of the copy
+     * @param occupiedDays the occupied days of each site
+     * @param changes the changes to apply on top, in the order they were applied first
+     * @param watermark the high-water mark of the reservation table the restored days match
+     */
+    public void restore(long fromEpochDay, Map<String, BitSet> occupiedDays, List<ReservationChangedEvent> changes,
+                        ReservationWatermark watermark) {
+        loadLock.writeLock().lock();
+        try {
+            sites.values().forEach(SiteIndex::clear);
+            long shift = fromEpochDay - baseEpochDay;
+            occupiedDays.forEach((siteId, occupied) -> siteOf(siteId).restore(occupied, shift));
+            this.watermark.set(watermark);
+            changes.forEach(event -> {
+                siteOf(event.getSiteId()).apply(event);
+                advance(event);
+            });
+            checkedAt = System.nanoTime();
+            stale = false;
+            ready = true;
+            LOGGER.info("Occupancy index restored with {} sites and {} changes", occupiedDays.size(), changes.size());
+        } finally {
+            loadLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Copy the occupied days of every site. The copy of a site is consistent, the copies of different sites may be a
+     * few changes apart.
+     *
+     * @return the occupied days of each site, the first bit being {@link #getBaseEpochDay()}
+     */
+    public Map<String, BitSet> copyOccupiedDays() {
+        Map<String, BitSet> occupiedDays = new HashMap<>();
+        sites.forEach((siteId, site) -> occupiedDays.put(siteId, site.copy()));
+        return occupiedDays;
+    }
+
+    /**
+     * The high-water mark the reservation table has once the changes applied so far are committed.
+     *
+     * @return the high-water mark, null before the first load or after a change of unknown version
+     */
+    public ReservationWatermark getWatermark() {
+        return watermark.get();
+    }
+
+    public long getBaseEpochDay() {
+        return baseEpochDay;
+    }
+
+    /**
+     * Run an action while no change is applied or loaded, so what it reads of the index matches what the applied
+     * listeners have seen so far.
+     *
+     * @param action the action, it must not wait for a change
+     * @return what the action returned
+     */
+    public <T> T withChangesPaused(Supplier<T> action) {
+        loadLock.writeLock().lock();
+        try {
+            return action.get();
+        } finally {
+            loadLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Register a listener called after every load of the index from the database, once its days and high-water mark
+     * are in place. The changes the load found reached the applied listeners before.
+     *
+     * @param listener the listener, it must not block
+     */
+    public void addLoadedListener(Runnable listener) {
+        loadedListeners.add(listener);
+    }
+
+    /**
+     * Register a listener called with every change applied to the index, while the site is still locked, so the
+     * listener sees the changes of a site in the order the index applied them. The days a reload found changed come
+     * without a reservation id.
+     *
+     * @param listener the listener, it must not block
+     */
+    public void addAppliedListener(Consumer<ReservationChangedEvent> listener) {
+        appliedListeners.add(listener);
+    }
+
+    /**
+     * The availability version of a site, increased after every committed change of the site has been applied to
+     * the index. Read it before searching, so a result is never tagged with a version newer than its data.
+     *
+     * @param siteId the site
+     * @return the current version
+     */
+    public long getVersion(String siteId) {
+        return siteOf(siteId).version.get();
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Check if the index is loaded and holds every day from the given date onwards.
+     *
+     * @param startFrom the first date to look up
+     * @return true when the index could answer the search
+     */
+    public boolean covers(LocalDate startFrom) {
+        return ready && startFrom.toEpochDay() >= baseEpochDay && isFresh();
+    }
+
+    /**
+     * Check if the index still matches the reservation table, comparing the high-water mark of the table at most
+     * every {@code reservation.index.max-staleness-millis}. One caller at a time compares it, the others go on with
+     * the outcome of the last comparison. While a local change is between its commit and the index the marks are
+     * not compared, the next caller tries again.
+     *
+     * @return false when the table moved since the index was loaded and the reload has not caught up yet
+     */
+    public boolean isFresh() {
+        if (System.nanoTime() - checkedAt < TimeUnit.MILLISECONDS.toNanos(maxStalenessMillis)
+                || !checking.compareAndSet(false, true)) {
+            return !stale;
+        }
+        try {
+            if (!stale) {
+                long applied = committed.get();
+                long started = committing.get();
+                if (started != applied) {
+                    return true;
+                }
+                ReservationWatermark expected = watermark.get();
+                if (!Objects.equals(reservationRepository.findWatermark(), expected)) {
+                    if (committing.get() != started) {
+                        // A local change may have committed during the read
+                        return true;
+                    }
+                    stale = true;
+                    evictCaches();
+                }
+            }
+            checkedAt = System.nanoTime();
+            if (stale) {
+                scheduleReload();
+            }
+        } catch (RuntimeException ex) {
+            LOGGER.warn("Could not read the reservation high-water mark, searches will use the database", ex);
+            stale = true;
+        } finally {
+            checking.set(false);
+        }
+        return !stale;
+    }
+
+    // The rows and queries cached by this instance missed the change as well
+    private void evictCaches() {
+        if (Objects.isNull(entityManagerFactory)) {
+            return;
+        }
+        entityManagerFactory.getCache().evict(Reservation.class);
+        entityManagerFactory.unwrap(SessionFactory.class).getCache().evictQueryRegion("reservation-queries");
+    }
+
+    private void advance(ReservationChangedEvent event) {
+        watermark.updateAndGet(current -> advance(current, event));
+    }
+
+    /**
+     * The high-water mark of the reservation table once a change is committed. The days a reload found changed are
+     * in the mark it read already, they leave it as it is.
+     *
+     * @param watermark the mark before the change, null when not known
+     * @param event the change
+     * @return the mark after the change, null when it is not known
+     */
+    public static ReservationWatermark advance(ReservationWatermark watermark, ReservationChangedEvent event) {
+        if (Objects.isNull(watermark) || Objects.isNull(event.getReservationId())) {
+            return watermark;
+        }
+        long id = event.getReservationId();
+        Long version = event.getVersion();
+        switch (event.getType()) {
+            case RESERVED:
+                return Objects.isNull(version) ? null : watermark.plus(1, id, version);
+            case CANCELLED:
+                return Objects.isNull(version) ? null : watermark.plus(-1, -id, -version);
+            default:
+                return watermark.plus(0, 0, 1);
+        }
+    }
+
+    private void scheduleReload() {
+        if (!reloading.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            reloader.execute(() -> {
+                try {
+                    reload();
+                } finally {
+                    reloading.set(false);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            reloading.set(false);
+        }
+    }
+
+    /**
+     * Find the free date ranges of a site between the given dates by walking the clear bits of the index.
+     *
+     * @param siteId the site
+     * @param startFrom the first date to look up
+     * @param endTo the last date to look up
+     * @return a list of {@link DateRange} which are still available
+     */
+    public List<DateRange> findFreeRanges(String siteId, LocalDate startFrom, LocalDate endTo) {
+        long from = Math.max(offset(startFrom), 0);
+        long to = offset(endTo);
+        if (from > to) {
+            return Lists.newArrayList();
+        }
+        if (from > MAX_OFFSET) {
+            return Lists.newArrayList(new DateRange(startFrom, endTo));
+        }
+        List<DateRange> results = siteOf(siteId).findFreeRanges((int) from, (int) Math.min(to, MAX_OFFSET));
+        // The days past the last bit are free, a range reaching it goes on to the end
+        DateRange last = results.isEmpty() ? null : results.get(results.size() - 1);
+        if (to > MAX_OFFSET && Objects.nonNull(last) && offset(last.endTo) == MAX_OFFSET) {
+            last.endTo = endTo;
+        }
+        return results;
+    }
+
+    private SiteIndex siteOf(String siteId) {
+        return sites.computeIfAbsent(siteId, key -> new SiteIndex());
+    }
+
+    private long offset(LocalDate date) {
+        return date.toEpochDay() - baseEpochDay;
+    }
+
+    private LocalDate toLocalDate(int offset) {
+        return LocalDate.ofEpochDay(baseEpochDay + offset);
+    }
+
+    /**
+     * The occupied days of one site.
+     */
+    private class SiteIndex {
+
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private final BitSet occupied = new BitSet();
+        private final AtomicLong version = new AtomicLong();
+
+        private void clear() {
+            lock.writeLock().lock();
+            try {
+                occupied.clear();
+                version.incrementAndGet();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        private void load(String siteId, List<Reservation> reservations, boolean publish) {
+            lock.writeLock().lock();
+            try {
+                BitSet loaded = (BitSet) occupied.clone();
+                occupied.clear();
+                for (Reservation reservation : reservations) {
+                    mark(reservation.getStartFrom(), reservation.getEndTo(), true);
+                }
+                // A reload finding the same days keeps the version, so the ETags handed out stay valid
+                if (occupied.equals(loaded)) {
+                    return;
+                }
+                version.incrementAndGet();
+                if (publish) {
+                    BitSet booked = (BitSet) occupied.clone();
+                    booked.andNot(loaded);
+                    loaded.andNot(occupied);
+                    publish(siteId, booked, ReservationChangedEvent.Type.RESERVED);
+                    publish(siteId, loaded, ReservationChangedEvent.Type.CANCELLED);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        // Every run of days becomes one change, the way a reservation holding them would have
+        private void publish(String siteId, BitSet days, ReservationChangedEvent.Type type) {
+            int from = days.nextSetBit(0);
+            while (from >= 0) {
+                int to = days.nextClearBit(from);
+                DateRange range = new DateRange(toLocalDate(from), toLocalDate(to - 1));
+                ReservationChangedEvent event = type == ReservationChangedEvent.Type.RESERVED
+                        ? new ReservationChangedEvent(type, siteId, null, null, range)
+                        : new ReservationChangedEvent(type, siteId, null, range, null);
+                appliedListeners.forEach(listener -> listener.accept(event));
+                from = days.nextSetBit(to);
+            }
+        }
+
+        private void apply(ReservationChangedEvent event) {
+            lock.writeLock().lock();
+            try {
+                if (Objects.nonNull(event.getPrevious())) {
+                    mark(event.getPrevious().startFrom, event.getPrevious().endTo, false);
+                }
+                if (Objects.nonNull(event.getCurrent())) {
+                    mark(event.getCurrent().startFrom, event.getCurrent().endTo, true);
+                }
+                version.incrementAndGet();
+                appliedListeners.forEach(listener -> listener.accept(event));
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        private void restore(BitSet days, long shift) {
+            lock.writeLock().lock();
+            try {
+                int from = days.nextSetBit((int) Math.min(Math.max(-shift, 0), Integer.MAX_VALUE));
+                while (from >= 0 && from + shift <= MAX_OFFSET) {
+                    int to = days.nextClearBit(from);
+                    occupied.set((int) (from + shift), (int) Math.min(to + shift, MAX_OFFSET + 1));
+                    from = days.nextSetBit(to);
+                }
+                version.incrementAndGet();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        private BitSet copy() {
+            lock.readLock().lock();
+            try {
+                return (BitSet) occupied.clone();
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        private List<DateRange> findFreeRanges(int from, int to) {
+            List<DateRange> results = Lists.newArrayList();
+            lock.readLock().lock();
+            try {
+                int free = occupied.nextClearBit(from);
+                while (free <= to) {
+                    int booked = occupied.nextSetBit(free);
+                    int last = (booked < 0 || booked > to) ? to : booked - 1;
+                    results.add(new DateRange(toLocalDate(free), toLocalDate(last)));
+                    free = occupied.nextClearBit(last + 1);
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            return results;
+        }
+
+        private void mark(LocalDate startFrom, LocalDate endTo, boolean booked) {
+            long from = Math.max(offset(startFrom), 0);
+            long to = Math.min(offset(endTo), MAX_OFFSET);
+            if (from <= to) {
+                occupied.set((int) from, (int) to + 1, booked);
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.techtao.campsite.service;
+
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the users who wrote recently, so their next reads could go to the primary instead of a replica
+ * which may not have the write yet.
+ *
+ * @author rantao
+ */
+@Component
+public class ReplicationLagGuard {
+
+    @Value("${database.replica.lag-guard-millis:5000}")
+    private long lagGuardMillis;
+
+    @Value("${database.replica.lag-guard-size:100000}")
+    private long lagGuardSize;
+
+    private Cache<String, Boolean> recentWriters;
+
+    @PostConstruct
+    public void init() {
+        recentWriters = CacheBuilder.newBuilder()
+                .maximumSize(lagGuardSize)
+                .expireAfterWrite(lagGuardMillis, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    public void recordWrite(String email) {
+        if (!Strings.isNullOrEmpty(email)) {
+            recentWriters.put(email, Boolean.TRUE);
+        }
+    }
+
+    public boolean recentlyWrote(String email) {
+        return !Strings.isNullOrEmpty(email) && Objects.nonNull(recentWriters.getIfPresent(email));
+    }
+}
@@ -0,0 +1,131 @@
+package com.techtao.campsite.service;
+
+import com.google.common.base.Strings;
+import com.google.common.cache.CacheBuilder;
+import com.techtao.campsite.metrics.ReservationMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token buckets per email and per client address in front of the writes, so a few callers sending in a loop cannot
+ * keep the day locks busy for everybody else. A bucket is a single {@link AtomicLong} updated by compare-and-set,
+ * the tables are bounded and forget the buckets left idle, which are full again by then anyway.
+ *
+ * @author rantao
+ */
+@Component
+public class RequestThrottle {
+
+    @Autowired
+    private ReservationMetrics reservationMetrics;
+
+    @Value("${reservation.throttle.enabled:true}")
+    private boolean enabled;
+
+    @Value("${reservation.throttle.email.per-second:1}")
+    private double emailPerSecond;
+
+    @Value("${reservation.throttle.email.burst:5}")
+    private int emailBurst;
+
+    @Value("${reservation.throttle.ip.per-second:10}")
+    private double ipPerSecond;
+
+    @Value("${reservation.throttle.ip.burst:20}")
+    private int ipBurst;
+
+    @Value("${reservation.throttle.size:100000}")
+    private long size;
+
+    @Value("${reservation.throttle.idle-minutes:10}")
+    private long idleMinutes;
+
+    private ConcurrentMap<String, TokenBucket> emailBuckets;
+    private ConcurrentMap<String, TokenBucket> ipBuckets;
+
+    @PostConstruct
+    public void init() {
+        emailBuckets = CacheBuilder.newBuilder().maximumSize(size)
+                .expireAfterAccess(idleMinutes, TimeUnit.MINUTES).<String, TokenBucket>build().asMap();
+        ipBuckets = CacheBuilder.newBuilder().maximumSize(size)
+                .expireAfterAccess(idleMinutes, TimeUnit.MINUTES).<String, TokenBucket>build().asMap();
+    }
+
+    /**
+     * Take a token from the bucket of the client address and from the one of the email.
+     *
+     * @param email the email of the request, if any
+     * @param address the client address
+     * @return 0 when the request may go on, otherwise the nanoseconds until a token is available again
+     */
+    public long tryAcquire(@Nullable String email, String address) {
+        if (!enabled) {
+            return 0;
+        }
+        long wait = take(ipBuckets, address, ipPerSecond, ipBurst, System.nanoTime());
+        if (wait > 0) {
+            reservationMetrics.recordThrottled("ip");
+            return wait;
+        }
+        return tryAcquireEmail(email);
+    }
+
+    /**
+     * Take a token from the bucket of an email only, for the emails read from a request body once it is parsed.
+     *
+     * @param email the email, if any
+     * @return 0 when the request may go on, otherwise the nanoseconds until a token is available again
+     */
+    public long tryAcquireEmail(@Nullable String email) {
+        if (!enabled || Strings.isNullOrEmpty(email)) {
+            return 0;
+        }
+        long wait = take(emailBuckets, email.trim().toLowerCase(Locale.ROOT), emailPerSecond, emailBurst,
+                System.nanoTime());
+        if (wait > 0) {
+            reservationMetrics.recordThrottled("email");
+        }
+        return wait;
+    }
+
+    private static long take(ConcurrentMap<String, TokenBucket> buckets, String key, double perSecond, int burst,
+                             long now) {
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / perSecond);
+        return buckets.computeIfAbsent(key, k -> new TokenBucket(now)).take(now, interval, interval * burst);
+    }
+
+    /**
+     * A token bucket kept as the time it would be full again (the generic cell rate algorithm): a token moves that
+     * time one interval ahead, and a request is refused while it lies more than the burst ahead of now.
+     */
+    static final class TokenBucket {
+
+        private final AtomicLong fullAt;
+
+        TokenBucket(long now) {
+            this.fullAt = new AtomicLong(now);
+        }
+
+        long take(long now, long interval, long burst) {
+            while (true) {
+                long current = fullAt.get();
+                long next = Math.max(current, now) + interval;
+                long wait = next - now - burst;
+                if (wait > 0) {
+                    return wait;
+                }
+                if (fullAt.compareAndSet(current, next)) {
+                    return 0;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.techtao.campsite.service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import com.techtao.campsite.config.ReadWriteRoutingDataSource;
+import com.techtao.campsite.domain.exception.NotAvailableException;
+import com.techtao.campsite.domain.model.ReservationTicket;
+import com.techtao.campsite.persistence.entity.IdempotencyRecord;
+import com.techtao.campsite.persistence.repository.IdempotencyRecordRepository;
+import lombok.AllArgsConstructor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A two steps reservation flow: clients submit a request and get a token immediately, the request waits in a
+ * bounded queue and a pool of daemon processors reserves it, then clients check the outcome by the token. The queue
+ * is local, the tickets are also kept in the idempotency_key table, so the status can be polled on any instance. A
+ * request queued on an instance which stops stays pending until its ticket expires.
+ *
+ * @author rantao
+ */
+@Component
+public class ReservationPipeline {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReservationPipeline.class);
+    private static final String SYSTEM_ERROR_MESSAGE = new NotAvailableException(
+            NotAvailableException.Reason.SYSTEM_ERROR, "System error, please try again.").getErrorMessage();
+
+    @Autowired
+    private ReservationService reservationService;
+
+    @Autowired
+    private IdempotencyRecordRepository idempotencyRecordRepository;
+
+    @Value("${reservation.pipeline.workers:4}")
+    private int workers;
+
+    @Value("${reservation.pipeline.capacity:1000}")
+    private int capacity;
+
+    @Value("${reservation.pipeline.ticket-ttl-minutes:30}")
+    private long ticketTtlMinutes;
+
+    private BlockingQueue<Request> queue;
+    private Cache<String, ReservationTicket> tickets;
+    private final List<Thread> processors = new CopyOnWriteArrayList<>();
+    private volatile boolean running;
+
+    @PostConstruct
+    public void start() {
+        queue = new ArrayBlockingQueue<>(capacity);
+        // Pending tickets are bounded by the queue, the extra room keeps finished ones around for polling
+        tickets = CacheBuilder.newBuilder()
+                .maximumSize(capacity * 10L)
+                .expireAfterWrite(ticketTtlMinutes, TimeUnit.MINUTES)
+                .build();
+        running = true;
+        for (int i = 0; i < workers; i++) {
+            Thread processor = new Thread(this::process, "reservation-processor-" + i);
+            processor.setDaemon(true);
+            processor.start();
+            processors.add(processor);
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        processors.forEach(Thread::interrupt);
+    }
+
+    /**
+     * Queue a reservation request.
+     *
+     * @param siteId the campsite
+     * @param userName the user's name
+     * @param email the user's email
+     * @param startFrom reserve starting date
+     * @param endTo reserve ending date
+     * @return the token to check the outcome with
+     * @throws NotAvailableException when the queue is full
+     */
+    public String submit(String siteId, String userName, String email, LocalDate startFrom, LocalDate endTo)
+            throws NotAvailableException {
+        String token = UUID.randomUUID().toString();
+        String request = String.join("/", siteId, email, userName, startFrom.toString(), endTo.toString());
+        IdempotencyRecord record = new IdempotencyRecord(keyOf(token), hash(request), System.currentTimeMillis());
+        // Saved before it is queued, so the processor updates it; a token refused below is never polled
+        saveQuietly(record);
+        tickets.put(token, ReservationTicket.pending(token));
+        if (!queue.offer(new Request(token, record, siteId, userName, email, startFrom, endTo))) {
+            tickets.invalidate(token);
+            throw new NotAvailableException(NotAvailableException.Reason.OVERLOADED,
+                    "Too many requests, please try again.");
+        }
+        return token;
+    }
+
+    /**
+     * Find the outcome of a submitted request.
+     *
+     * @param token the token returned on submit
+     * @return the {@link ReservationTicket}, or null when the token is unknown or expired
+     */
+    public ReservationTicket status(String token) {
+        ReservationTicket ticket = tickets.getIfPresent(token);
+        if (Objects.nonNull(ticket)) {
+            return ticket;
+        }
+        // Submitted to another instance, a replica could still miss it
+        IdempotencyRecord record = ReadWriteRoutingDataSource.onPrimary(
+                () -> idempotencyRecordRepository.findById(keyOf(token))).orElse(null);
+        if (Objects.isNull(record)
+                || record.getCreatedAt() < System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(ticketTtlMinutes)) {
+            return null;
+        }
+        if (Objects.nonNull(record.getResult())) {
+            return new ReservationTicket(token, ReservationTicket.Status.RESERVED, record.getResult(), null);
+        }
+        if (Objects.nonNull(record.getReason())) {
+            return new ReservationTicket(token, ReservationTicket.Status.REJECTED, null, record.getMessage());
+        }
+        return ReservationTicket.pending(token);
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    private void process() {
+        while (running) {
+            Request request;
+            try {
+                request = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            ReservationTicket ticket = ReservationTicket.pending(request.token);
+            IdempotencyRecord record = request.record;
+            try {
+                ticket.setReservationId(reservationService.reserve(request.siteId, request.userName, request.email,
+                        request.startFrom, request.endTo));
+                ticket.setStatus(ReservationTicket.Status.RESERVED);
+                record.setResult(ticket.getReservationId());
+            } catch (NotAvailableException ex) {
+                ticket.setStatus(ReservationTicket.Status.REJECTED);
+                ticket.setMessage(ex.getErrorMessage());
+                record.setReason(ex.getReason().name());
+            } catch (RuntimeException ex) {
+                // The cause stays in the log, the client only learns that it could try again
+                LOGGER.warn("Reservation request {} failed", request.token, ex);
+                ticket.setStatus(ReservationTicket.Status.REJECTED);
+                ticket.setMessage(SYSTEM_ERROR_MESSAGE);
+                record.setReason(NotAvailableException.Reason.SYSTEM_ERROR.name());
+            }
+            record.setMessage(ticket.getMessage());
+            tickets.put(request.token, ticket);
+            saveQuietly(record);
+        }
+    }
+
+    private void saveQuietly(IdempotencyRecord record) {
+        try {
+            idempotencyRecordRepository.save(record);
+        } catch (RuntimeException ex) {
+            // This instance still answers from its tickets, the others do not know the ticket
+            LOGGER.warn("Could not save the reservation ticket {}", record.getIdempotencyKey(), ex);
+        }
+    }
+
+    private static String keyOf(String token) {
+        return hash("ticket/" + token);
+    }
+
+    private static String hash(String value) {
+        return Hashing.sha256().hashString(value, StandardCharsets.UTF_8).toString();
+    }
+
+    @AllArgsConstructor
+    private static class Request {
+        private final String token;
+        private final IdempotencyRecord record;
+        private final String siteId;
+        private final String userName;
+        private final String email;
+        private final LocalDate startFrom;
+        private final LocalDate endTo;
+    }
+}
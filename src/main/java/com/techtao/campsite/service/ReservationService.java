@@ -2,9 +2,12 @@ package com.techtao.campsite.service;
 
 import com.techtao.campsite.domain.exception.NotAvailableException;
 import com.techtao.campsite.domain.model.DateRange;
+import com.techtao.campsite.domain.model.ReservationRequest;
+import com.techtao.campsite.domain.model.ReservationResult;
 
 import java.time.LocalDate;
 import java.util.List;
+import java.util.function.Consumer;
 
 /**
  * An interface defines services for reservation.
@@ -16,15 +19,29 @@ public interface ReservationService {
     /**
      * This method will take a range of dates and find the available ranges for reservations.
      *
+     * @param siteId the campsite
      * @param startFrom the reservation start date
      * @param endTo the reservation end date
      * @return a list of {@link DateRange} which are still available
      */
-    List<DateRange> searchForReservation(LocalDate startFrom, LocalDate endTo);
+    List<DateRange> searchForReservation(String siteId, LocalDate startFrom, LocalDate endTo);
+
+    /**
+     * This method will find the available ranges like {@link #searchForReservation(String, LocalDate, LocalDate)}, but
+     * hands each range to the consumer as soon as it is found, reading the reservations a page at a time. Memory
+     * stays flat for any window size, and no transaction is open while the consumer runs.
+     *
+     * @param siteId the campsite
+     * @param startFrom the reservation start date
+     * @param endTo the reservation end date
+     * @param consumer receives each {@link DateRange} which is still available, in date order
+     */
+    void streamForReservation(String siteId, LocalDate startFrom, LocalDate endTo, Consumer<DateRange> consumer);
 
     /**
      * This method will try reserve the campsite for the given user and return an unique reservation id.
      *
+     * @param siteId the campsite
      * @param userName the user's name
      * @param email the user's email
      * @param startFrom reserve starting date
@@ -32,11 +49,26 @@ public interface ReservationService {
      * @return the unique id
      * @throws NotAvailableException when the date range is not reservable
      */
-    String reserve(String userName, String email, LocalDate startFrom, LocalDate endTo) throws NotAvailableException;
+    String reserve(String siteId, String userName, String email, LocalDate startFrom, LocalDate endTo)
+            throws NotAvailableException;
+
+    /**
+     * This method will try reserve a batch of reservations in one transaction. Each reservation is accepted or
+     * rejected on its own, a reservation overlapping an earlier one of the same batch is rejected. When the batch is
+     * rolled back by a conflict on a day slot, each of its reservations is retried on its own, in the same order.
+     *
+     * @param siteId the campsite of every reservation of the batch
+     * @param requests the reservations to make
+     * @return a {@link ReservationResult} for each request, in the same order
+     * @throws NotAvailableException when the dates of the batch could not be locked in time, nothing of the batch
+     *                               was saved then
+     */
+    List<ReservationResult> reserveAll(String siteId, List<ReservationRequest> requests) throws NotAvailableException;
 
     /**
      * This method will try update an existing reservation.
      *
+     * @param siteId the campsite of the reservation
      * @param id the unique id for the reservation
      * @param email the user's email as a validation
      * @param startFrom reserve starting date
@@ -44,15 +76,18 @@ public interface ReservationService {
      * @return the unique id
      * @throws NotAvailableException when the date range is not reservable
      */
-    String update(String id, String email, LocalDate startFrom, LocalDate endTo) throws NotAvailableException;
+    String update(String siteId, String id, String email, LocalDate startFrom, LocalDate endTo)
+            throws NotAvailableException;
 
 
     /**
      * This method will try cancel an existing reservation.
      *
+     * @param siteId the campsite of the reservation
      * @param id the unique id for the reservation
      * @param email the user's email as a validation
+     * @throws NotAvailableException when the reservation dates could not be locked in time
      */
-    void cancel(String id, String email);
+    void cancel(String siteId, String id, String email) throws NotAvailableException;
 
 }
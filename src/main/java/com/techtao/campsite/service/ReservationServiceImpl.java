@@ -1,24 +1,56 @@
 package com.techtao.campsite.service;
 
 import com.google.common.collect.Lists;
+import com.techtao.campsite.domain.event.ReservationChangedEvent;
 import com.techtao.campsite.domain.exception.NotAvailableException;
 import com.techtao.campsite.domain.model.DateRange;
+import com.techtao.campsite.domain.model.ReservationRequest;
+import com.techtao.campsite.domain.model.ReservationResult;
 import com.techtao.campsite.domain.validator.DateRangeValidator;
+import com.techtao.campsite.metrics.ReservationMetrics;
 import com.techtao.campsite.persistence.entity.Reservation;
+import com.techtao.campsite.persistence.entity.ReservationDay;
+import com.techtao.campsite.persistence.projection.FreeDateRange;
+import com.techtao.campsite.persistence.projection.ReservationPeriod;
+import com.techtao.campsite.persistence.repository.ReservationDayRepository;
 import com.techtao.campsite.persistence.repository.ReservationRepository;
+import com.techtao.campsite.service.lock.Lease;
+import com.techtao.campsite.service.lock.ReservationCoordinator;
+import org.hibernate.SessionFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.util.CollectionUtils;
 
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManagerFactory;
 import java.time.LocalDate;
-import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
-import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 /**
  *  A service class to support reservation.
@@ -35,31 +67,133 @@ public class ReservationServiceImpl implements ReservationService {
     @Autowired
     private DateRangeValidator dateRangeValidator;
 
-    private final static ReentrantLock addLock = new ReentrantLock();
-    private final static ReentrantLock updateLock = new ReentrantLock();
+    @Autowired
+    private OccupancyIndex occupancyIndex;
+
+    @Autowired
+    private ApplicationEventPublisher eventPublisher;
+
+    @Autowired
+    private ReservationCoordinator reservationCoordinator;
+
+    @Autowired
+    private ReservationDayRepository reservationDayRepository;
+
+    @Autowired
+    private ReplicationLagGuard replicationLagGuard;
+
+    @Autowired
+    private ReservationMetrics reservationMetrics;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Autowired
+    private GroupCommitter groupCommitter;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    @Value("${reservation.commit-mode:lock}")
+    private CommitMode commitMode;
+
+    @Value("${reservation.search-engine:entity}")
+    private SearchEngine searchEngine;
+
+    @Value("${reservation.group-commit.wait-seconds:10}")
+    private long groupCommitWaitSeconds;
+
+    @Value("${reservation.update.max-attempts:3}")
+    private int maxUpdateAttempts;
+
+    @Value("${reservation.stream.page-size:500}")
+    private int streamPageSize;
+
+    private TransactionTemplate transactionTemplate;
+
+    private final static long LOCK_TIMEOUT_SECONDS = 5;
+    private final static String RESERVATION_QUERIES = "reservation-queries";
+    private final static String CONFLICT_MESSAGE = new NotAvailableException(NotAvailableException.Reason.CONFLICT,
+            "There are reservations already in this date range").getErrorMessage();
+
+    @PostConstruct
+    public void init() {
+        transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    // No physical transaction here, the index answers most searches without a connection
+    @Override
+    @Transactional(propagation = Propagation.SUPPORTS, readOnly = true)
+    public List<DateRange> searchForReservation(String siteId, LocalDate startFrom, LocalDate endTo) {
+        return reservationMetrics.recordSearchOperation(() -> {
+            if (occupancyIndex.covers(startFrom)) {
+                reservationMetrics.recordSearch("index", 0);
+                return occupancyIndex.findFreeRanges(siteId, startFrom, endTo);
+            }
+
+            return searchFromRepository(siteId, startFrom, endTo);
+        });
+    }
+
+    // Each page is read in a transaction of its own, no connection is held while the consumer writes to the client
+    @Override
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void streamForReservation(String siteId, LocalDate startFrom, LocalDate endTo,
+                                     Consumer<DateRange> consumer) {
+        LocalDate next = startFrom;
+        Pageable page = PageRequest.of(0, streamPageSize);
+        List<ReservationPeriod> periods = reservationRepository.findPeriods(siteId, startFrom, endTo, page);
+        while (!periods.isEmpty()) {
+            for (ReservationPeriod period : periods) {
+                if (period.getStartFrom().isAfter(next)) {
+                    consumer.accept(new DateRange(next, period.getStartFrom().minusDays(1)));
+                }
+                if (!period.getEndTo().isBefore(next)) {
+                    next = period.getEndTo().plusDays(1);
+                }
+            }
+            if (periods.size() < streamPageSize) {
+                break;
+            }
+            LocalDate after = periods.get(periods.size() - 1).getStartFrom();
+            periods = reservationRepository.findPeriodsStartingAfter(siteId, after, startFrom, endTo, page);
+        }
+
+        if (!next.isAfter(endTo)) {
+            consumer.accept(new DateRange(next, endTo));
+        }
+    }
+
+    private List<DateRange> searchFromRepository(String siteId, LocalDate startFrom, LocalDate endTo) {
+        if (searchEngine == SearchEngine.SQL) {
+            List<FreeDateRange> freeRanges = reservationMetrics.recordQuery("gaps",
+                    () -> reservationRepository.findFreeRanges(siteId, startFrom, endTo));
+            reservationMetrics.recordSearch("sql", 0);
+            return freeRanges.stream()
+                    .map(range -> new DateRange(range.getStartFrom().toLocalDate(), range.getEndTo().toLocalDate()))
+                    .collect(Collectors.toList());
+        }
 
-    public List<DateRange> searchForReservation(LocalDate startFrom, LocalDate endTo) {
         List<DateRange> results = Lists.newArrayList();
 
-        List<Reservation> reservations =
-                reservationRepository.findAllByStartFromLessThanEqualAndEndToGreaterThanEqual(
-                        convertToDate(endTo), convertToDate(startFrom));
+        List<Reservation> reservations = reservationMetrics.recordQuery("overlap",
+                () -> reservationRepository.findAllBySiteIdAndStartFromLessThanEqualAndEndToGreaterThanEqual(
+                        siteId, endTo, startFrom));
+        reservationMetrics.recordSearch("repository", reservations.size());
         if (CollectionUtils.isEmpty(reservations)) {
             results.add(new DateRange(startFrom, endTo));
         } else {
             reservations.sort(Comparator.comparing(reservation -> reservation.getStartFrom()));
             LocalDate startDate = startFrom;
             for (Reservation reservation : reservations) {
-                LocalDate convertedStartDate = convertToLocalDateFrom(reservation.getStartFrom());
-                LocalDate convertedEndDate = convertToLocalDateFrom(reservation.getEndTo());
-                if (convertedStartDate.isEqual(startDate)) {
-                    startDate = convertedEndDate.plusDays(1);
+                if (reservation.getStartFrom().isEqual(startDate)) {
+                    startDate = reservation.getEndTo().plusDays(1);
                     continue;
                 }
 
                 if (startDate.isBefore(endTo)) {
-                    results.add(new DateRange(startDate, convertedStartDate.minusDays(1)));
-                    startDate = convertedEndDate.plusDays(1);
+                    results.add(new DateRange(startDate, reservation.getStartFrom().minusDays(1)));
+                    startDate = reservation.getEndTo().plusDays(1);
                 }
             }
 
@@ -72,93 +206,451 @@ public class ReservationServiceImpl implements ReservationService {
         return results;
     }
 
+    // The check runs in a transaction of its own, a grouped reservation is committed later by the GroupCommitter
     @Override
-    public String reserve(String userName, String email, LocalDate startFrom, LocalDate endTo) throws NotAvailableException {
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public String reserve(String siteId, String userName, String email, LocalDate startFrom, LocalDate endTo)
+            throws NotAvailableException {
+        return reservationMetrics.recordOperation("reserve", () -> {
+            if (groupCommitter.isEnabled() && commitMode == CommitMode.LOCK) {
+                CompletableFuture<Long> id = inTransaction(
+                        () -> doSubmit(siteId, userName, email, startFrom, endTo));
+                return String.valueOf(awaitCommit(id));
+            }
+            return inTransaction(() -> doReserve(siteId, userName, email, startFrom, endTo));
+        });
+    }
+
+    // A day-slot conflict rolls the whole batch back, its requests are then reserved one by one
+    @Override
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public List<ReservationResult> reserveAll(String siteId, List<ReservationRequest> requests)
+            throws NotAvailableException {
+        return reservationMetrics.recordOperation("reserveAll", () -> {
+            try {
+                return inTransaction(() -> doReserveAll(siteId, requests));
+            } catch (NotAvailableException ex) {
+                if (ex.getReason() != NotAvailableException.Reason.CONFLICT) {
+                    throw ex;
+                }
+                return reserveOneByOne(siteId, requests);
+            }
+        });
+    }
+
+    private List<ReservationResult> reserveOneByOne(String siteId, List<ReservationRequest> requests) {
+        List<ReservationResult> results = new ArrayList<>(requests.size());
+        for (ReservationRequest request : requests) {
+            try {
+                results.add(ReservationResult.reserved(inTransaction(() -> doReserve(siteId, request.getUserName(),
+                        request.getEmail(), request.getStartFrom(), request.getEndTo()))));
+            } catch (NotAvailableException ex) {
+                results.add(ReservationResult.rejected(ex.getErrorMessage()));
+            } catch (IllegalArgumentException ex) {
+                results.add(ReservationResult.rejected(ex.getMessage()));
+            }
+        }
+        return results;
+    }
+
+    // Every attempt runs in a transaction of its own, a version conflict needs a fresh read of the reservation
+    @Override
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public String update(String siteId, String id, String email, LocalDate startFrom, LocalDate endTo)
+            throws NotAvailableException {
+        return reservationMetrics.recordOperation("update",
+                () -> retryOnConcurrentChange(id, () -> doUpdate(siteId, id, email, startFrom, endTo)));
+    }
+
+    // A reservation changed meanwhile makes the delete fail on its version too
+    @Override
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void cancel(String siteId, String id, String email) throws NotAvailableException {
+        reservationMetrics.recordOperation("cancel", () -> retryOnConcurrentChange(id, () -> {
+            doCancel(siteId, id, email);
+            return null;
+        }));
+    }
+
+    private <T> T retryOnConcurrentChange(String id, ReservationMetrics.ReservationCall<T> call)
+            throws NotAvailableException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return inTransaction(call);
+            } catch (OptimisticLockingFailureException ex) {
+                if (attempt >= maxUpdateAttempts) {
+                    throw new NotAvailableException(NotAvailableException.Reason.CONCURRENT_UPDATE,
+                            "The reservation is being changed by another request, please try again.");
+                }
+                evictReservation(id);
+            }
+        }
+    }
+
+    // The shared cache keeps the row and the query result read before, the next attempt must read them again
+    private void evictReservation(String id) {
+        entityManagerFactory.getCache().evict(Reservation.class, Long.parseLong(id));
+        entityManagerFactory.unwrap(SessionFactory.class).getCache().evictQueryRegion(RESERVATION_QUERIES);
+    }
+
+    // Check and claim the days under their locks, the locks are released as soon as the days are claimed
+    private CompletableFuture<Long> doSubmit(String siteId, String userName, String email, LocalDate startFrom,
+                                             LocalDate endTo) throws NotAvailableException {
         if(!dateRangeValidator.validateDateRange(startFrom, endTo)) {
-            throw new NotAvailableException("User could only reserve for maximum 3 days");
+            throw new NotAvailableException(NotAvailableException.Reason.INVALID_RANGE,
+                    "User could only reserve for maximum 3 days");
         }
         Reservation reservation = new Reservation();
+        reservation.setSiteId(siteId);
         reservation.setEmail(email);
         reservation.setUsername(userName);
-        reservation.setStartFrom(Date.from(startFrom.atStartOfDay(ZoneId.systemDefault()).toInstant()));
-        reservation.setEndTo(Date.from(endTo.atStartOfDay(ZoneId.systemDefault()).toInstant()));
+        reservation.setStartFrom(startFrom);
+        reservation.setEndTo(endTo);
 
+        Set<LocalDate> days = ReservationCoordinator.daysOf(startFrom, endTo);
+        Lease lease = lockDays(siteId, days);
         try {
-            if (addLock.tryLock(5, TimeUnit.SECONDS)) {
-                List<Reservation> reservations =
-                        reservationRepository.findAllByStartFromLessThanEqualAndEndToGreaterThanEqual(
-                                convertToDate(endTo), convertToDate(startFrom));
-                if (!CollectionUtils.isEmpty(reservations)) {
-                    throw new NotAvailableException("There are reservations already in this date range");
-                }
+            checkAvailability(siteId, startFrom, endTo);
+            return groupCommitter.submit(reservation, days);
+        } finally {
+            lease.releaseAfterCompletion();
+        }
+    }
 
-                Long id = reservationRepository.save(reservation).getId();
-                return String.valueOf(id);
-            } else {
-                throw new NotAvailableException("Timeout, please try again.");
+    private Long awaitCommit(CompletableFuture<Long> id) throws NotAvailableException {
+        try {
+            try {
+                return id.get(groupCommitWaitSeconds, TimeUnit.SECONDS);
+            } catch (TimeoutException e) {
+                if (groupCommitter.cancel(id)) {
+                    throw new NotAvailableException(NotAvailableException.Reason.TIMEOUT,
+                            "Timeout, please try again.");
+                }
+                // Its group is being committed already, a retry would only conflict with it
+                return id.get();
             }
         } catch (InterruptedException e) {
-            throw new NotAvailableException("System error, please try again.");
-        } finally {
-            addLock.unlock();
+            Thread.currentThread().interrupt();
+            groupCommitter.cancel(id);
+            throw new NotAvailableException(NotAvailableException.Reason.SYSTEM_ERROR,
+                    "System error, please try again.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof NotAvailableException) {
+                throw (NotAvailableException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
         }
     }
 
-    @Override
-    public String update(String id, String email, LocalDate startFrom, LocalDate endTo) throws NotAvailableException {
+    private String doReserve(String siteId, String userName, String email, LocalDate startFrom, LocalDate endTo)
+            throws NotAvailableException {
         if(!dateRangeValidator.validateDateRange(startFrom, endTo)) {
-            throw new NotAvailableException("User could only reserve for maximum 3 days");
+            throw new NotAvailableException(NotAvailableException.Reason.INVALID_RANGE,
+                    "User could only reserve for maximum 3 days");
         }
+        Reservation reservation = new Reservation();
+        reservation.setSiteId(siteId);
+        reservation.setEmail(email);
+        reservation.setUsername(userName);
+        reservation.setStartFrom(startFrom);
+        reservation.setEndTo(endTo);
 
-        Reservation reservation = reservationRepository.findByIdAndEmail(Long.parseLong(id), email);
-        if (Objects.isNull(reservation)) {
-            throw new NotAvailableException("Cannot find the reservation");
+        Lease lease = lockDays(siteId, ReservationCoordinator.daysOf(startFrom, endTo));
+        try {
+            checkAvailability(siteId, startFrom, endTo);
+
+            Long id = reservationRepository.save(reservation).getId();
+            claimDays(siteId, id, startFrom, endTo);
+            eventPublisher.publishEvent(new ReservationChangedEvent(ReservationChangedEvent.Type.RESERVED, siteId,
+                    id, null, new DateRange(startFrom, endTo), reservation.getVersion()));
+            replicationLagGuard.recordWrite(email);
+            return String.valueOf(id);
+        } finally {
+            lease.releaseAfterCompletion();
         }
+    }
+
+    private List<ReservationResult> doReserveAll(String siteId, List<ReservationRequest> requests)
+            throws NotAvailableException {
+        ReservationResult[] results = new ReservationResult[requests.size()];
+        Map<Integer, Set<LocalDate>> candidates = new LinkedHashMap<>();
+        TreeSet<LocalDate> batchDays = new TreeSet<>();
 
-        Reservation newReservation = new Reservation();
-        newReservation.setEmail(email);
-        newReservation.setUsername(reservation.getUsername());
-        newReservation.setStartFrom(Date.from(startFrom.atStartOfDay(ZoneId.systemDefault()).toInstant()));
-        newReservation.setEndTo(Date.from(endTo.atStartOfDay(ZoneId.systemDefault()).toInstant()));
+        // Validate every request and reject the ones overlapping an earlier request of the batch
+        for (int i = 0; i < requests.size(); i++) {
+            ReservationRequest request = requests.get(i);
+            try {
+                if (!dateRangeValidator.validateDateRange(request.getStartFrom(), request.getEndTo())) {
+                    results[i] = ReservationResult.rejected(new NotAvailableException(
+                            NotAvailableException.Reason.INVALID_RANGE,
+                            "User could only reserve for maximum 3 days").getErrorMessage());
+                    continue;
+                }
+            } catch (IllegalArgumentException ex) {
+                results[i] = ReservationResult.rejected(ex.getMessage());
+                continue;
+            }
 
+            Set<LocalDate> days = ReservationCoordinator.daysOf(request.getStartFrom(), request.getEndTo());
+            if (!Collections.disjoint(days, batchDays)) {
+                results[i] = ReservationResult.rejected(CONFLICT_MESSAGE);
+                continue;
+            }
+            batchDays.addAll(days);
+            candidates.put(i, days);
+        }
+
+        if (candidates.isEmpty()) {
+            return Arrays.asList(results);
+        }
+
+        Lease lease = lockDays(siteId, batchDays);
         try {
-            // This doesn't work, will rework on this later
-            if (updateLock.tryLock(5, TimeUnit.SECONDS)) {
-                reservationRepository.delete(reservation);
-                List<Reservation> reservations =
-                        reservationRepository.findAllByStartFromLessThanEqualAndEndToGreaterThanEqual(
-                                convertToDate(endTo), convertToDate(startFrom));
-                if (!CollectionUtils.isEmpty(reservations)) {
-                    throw new NotAvailableException("There are reservations already in this date range");
+            // One query for the whole span of the batch instead of one per request
+            LocalDate first = batchDays.first();
+            LocalDate last = batchDays.last();
+            Set<LocalDate> bookedDays = new HashSet<>();
+            for (Reservation reservation : reservationMetrics.recordQuery("conflict",
+                    () -> reservationRepository.findConflicting(siteId, first, last))) {
+                bookedDays.addAll(ReservationCoordinator.daysOf(reservation.getStartFrom(), reservation.getEndTo()));
+            }
+
+            Map<Integer, Reservation> accepted = new LinkedHashMap<>();
+            for (Map.Entry<Integer, Set<LocalDate>> candidate : candidates.entrySet()) {
+                if (!Collections.disjoint(candidate.getValue(), bookedDays)
+                        || groupCommitter.isClaimed(siteId, candidate.getValue())) {
+                    results[candidate.getKey()] = ReservationResult.rejected(CONFLICT_MESSAGE);
+                    continue;
                 }
+                ReservationRequest request = requests.get(candidate.getKey());
+                Reservation reservation = new Reservation();
+                reservation.setSiteId(siteId);
+                reservation.setEmail(request.getEmail());
+                reservation.setUsername(request.getUserName());
+                reservation.setStartFrom(request.getStartFrom());
+                reservation.setEndTo(request.getEndTo());
+                accepted.put(candidate.getKey(), reservation);
+            }
 
-                Long newId = reservationRepository.save(newReservation).getId();
-                return String.valueOf(newId);
-            } else {
-                throw new NotAvailableException("Timeout, please try again.");
+            // Sent as one JDBC batch at the commit, the ids are drawn from the id table without an insert
+            reservationRepository.saveAll(accepted.values());
+            for (Map.Entry<Integer, Reservation> entry : accepted.entrySet()) {
+                ReservationRequest request = requests.get(entry.getKey());
+                Long id = entry.getValue().getId();
+                claimDays(siteId, id, request.getStartFrom(), request.getEndTo());
+                eventPublisher.publishEvent(new ReservationChangedEvent(ReservationChangedEvent.Type.RESERVED,
+                        siteId, id, null, new DateRange(request.getStartFrom(), request.getEndTo()),
+                        entry.getValue().getVersion()));
+                replicationLagGuard.recordWrite(request.getEmail());
+                results[entry.getKey()] = ReservationResult.reserved(String.valueOf(id));
             }
-        } catch (InterruptedException e) {
-            throw new NotAvailableException("System error, please try again.");
+            return Arrays.asList(results);
         } finally {
-            updateLock.unlock();
+            lease.releaseAfterCompletion();
         }
     }
 
-    @Override
-    public void cancel(String id, String email) {
-        Reservation reservation = reservationRepository.findByIdAndEmail(Long.parseLong(id), email);
+    private String doUpdate(String siteId, String id, String email, LocalDate startFrom, LocalDate endTo)
+            throws NotAvailableException {
+        if(!dateRangeValidator.validateDateRange(startFrom, endTo)) {
+            throw new NotAvailableException(NotAvailableException.Reason.INVALID_RANGE,
+                    "User could only reserve for maximum 3 days");
+        }
+
+        Reservation reservation = findByIdAndEmail(siteId, id, email);
+        if (Objects.isNull(reservation)) {
+            throw new NotAvailableException(NotAvailableException.Reason.NOT_FOUND, "Cannot find the reservation");
+        }
+
+        // Nothing to write, and an update event always stands for one more version of the row
+        if (startFrom.isEqual(reservation.getStartFrom()) && endTo.isEqual(reservation.getEndTo())) {
+            return String.valueOf(reservation.getId());
+        }
+
+        // Only the days the reservation does not hold yet can conflict with another reservation
+        LocalDate previousStartFrom = reservation.getStartFrom();
+        LocalDate previousEndTo = reservation.getEndTo();
+        Set<LocalDate> previousDays = ReservationCoordinator.daysOf(previousStartFrom, previousEndTo);
+        TreeSet<LocalDate> addedDays = new TreeSet<>(ReservationCoordinator.daysOf(startFrom, endTo));
+        addedDays.removeAll(previousDays);
+        Set<LocalDate> removedDays = new TreeSet<>(previousDays);
+        removedDays.removeAll(ReservationCoordinator.daysOf(startFrom, endTo));
+
+        Lease lease = addedDays.isEmpty() ? Lease.none() : lockDays(siteId, addedDays);
+        try {
+            checkAvailability(siteId, reservation.getId(), addedDays);
+
+            // The version column makes the update fail if the reservation was changed since it was read
+            reservation.setStartFrom(startFrom);
+            reservation.setEndTo(endTo);
+            reservationRepository.save(reservation);
+            releaseDays(reservation.getId(), removedDays);
+            claimDays(siteId, reservation.getId(), addedDays);
+            eventPublisher.publishEvent(new ReservationChangedEvent(ReservationChangedEvent.Type.UPDATED, siteId,
+                    reservation.getId(), new DateRange(previousStartFrom, previousEndTo),
+                    new DateRange(startFrom, endTo)));
+            replicationLagGuard.recordWrite(email);
+            return String.valueOf(reservation.getId());
+        } finally {
+            lease.releaseAfterCompletion();
+        }
+    }
+
+    private void doCancel(String siteId, String id, String email) throws NotAvailableException {
+        Reservation reservation = findByIdAndEmail(siteId, id, email);
         if (Objects.isNull(reservation)) {
             return;
         }
 
-        reservationRepository.delete(reservation);
+        LocalDate startFrom = reservation.getStartFrom();
+        LocalDate endTo = reservation.getEndTo();
+        Lease lease = lockDays(siteId, ReservationCoordinator.daysOf(startFrom, endTo));
+        try {
+            reservationRepository.delete(reservation);
+            releaseDays(reservation.getId());
+            eventPublisher.publishEvent(new ReservationChangedEvent(ReservationChangedEvent.Type.CANCELLED, siteId,
+                    reservation.getId(), new DateRange(startFrom, endTo), null, reservation.getVersion()));
+            replicationLagGuard.recordWrite(email);
+        } finally {
+            lease.releaseAfterCompletion();
+        }
+    }
+
+    private Reservation findByIdAndEmail(String siteId, String id, String email) {
+        return reservationMetrics.recordQuery("idAndEmail",
+                () -> reservationRepository.findByIdAndSiteIdAndEmail(Long.parseLong(id), siteId, email));
     }
 
-    private LocalDate convertToLocalDateFrom(Date inputDate) {
-        return inputDate.toInstant().atZone(ZoneId.systemDefault()).toLocalDate();
+    private Lease lockDays(String siteId, Set<LocalDate> days) throws NotAvailableException {
+        if (commitMode == CommitMode.DAY_SLOT) {
+            return Lease.none();
+        }
+
+        try {
+            Lease lease = reservationCoordinator.tryLock(siteId, days, LOCK_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if (Objects.isNull(lease)) {
+                throw new NotAvailableException(NotAvailableException.Reason.TIMEOUT,
+                        "Timeout, please try again.");
+            }
+            return lease;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NotAvailableException(NotAvailableException.Reason.SYSTEM_ERROR,
+                    "System error, please try again.");
+        }
     }
 
-    private Date convertToDate(LocalDate inputDate) {
-        return Date.from(inputDate.atStartOfDay(ZoneId.systemDefault()).toInstant());
+    // Only the given days are checked and the reservation being updated never conflicts with itself
+    private void checkAvailability(String siteId, Long reservationId, TreeSet<LocalDate> days)
+            throws NotAvailableException {
+        if (commitMode == CommitMode.DAY_SLOT || days.isEmpty()) {
+            return;
+        }
+
+        if (groupCommitter.isClaimed(siteId, days)) {
+            throw new NotAvailableException(NotAvailableException.Reason.CONFLICT,
+                    "There are reservations already in this date range");
+        }
+
+        List<Reservation> reservations = reservationMetrics.recordQuery("conflict",
+                () -> reservationRepository.findConflicting(siteId, days.first(), days.last()));
+        for (Reservation reservation : reservations) {
+            if (reservation.getId().equals(reservationId)) {
+                continue;
+            }
+            Set<LocalDate> reservedDays = ReservationCoordinator.daysOf(reservation.getStartFrom(),
+                    reservation.getEndTo());
+            if (!Collections.disjoint(reservedDays, days)) {
+                throw new NotAvailableException(NotAvailableException.Reason.CONFLICT,
+                        "There are reservations already in this date range");
+            }
+        }
+    }
+
+    private void checkAvailability(String siteId, LocalDate startFrom, LocalDate endTo)
+            throws NotAvailableException {
+        if (commitMode == CommitMode.DAY_SLOT) {
+            return;
+        }
+
+        if (groupCommitter.isClaimed(siteId, ReservationCoordinator.daysOf(startFrom, endTo))) {
+            throw new NotAvailableException(NotAvailableException.Reason.CONFLICT,
+                    "There are reservations already in this date range");
+        }
+
+        List<Reservation> reservations = reservationMetrics.recordQuery("conflict",
+                () -> reservationRepository.findConflicting(siteId, startFrom, endTo));
+        if (!CollectionUtils.isEmpty(reservations)) {
+            throw new NotAvailableException(NotAvailableException.Reason.CONFLICT,
+                    "There are reservations already in this date range");
+        }
+    }
+
+    // The unique key of the site and day on reservation_day rejects the insert when any of the days is already taken
+    private void claimDays(String siteId, Long reservationId, LocalDate startFrom, LocalDate endTo)
+            throws NotAvailableException {
+        claimDays(siteId, reservationId, ReservationCoordinator.daysOf(startFrom, endTo));
+    }
+
+    private void claimDays(String siteId, Long reservationId, Set<LocalDate> days) throws NotAvailableException {
+        if (commitMode != CommitMode.DAY_SLOT || days.isEmpty()) {
+            return;
+        }
+
+        List<ReservationDay> reservationDays = Lists.newArrayList();
+        for (LocalDate day : days) {
+            reservationDays.add(new ReservationDay(siteId, day, reservationId));
+        }
+        try {
+            reservationDayRepository.saveAll(reservationDays);
+            reservationDayRepository.flush();
+        } catch (DataIntegrityViolationException ex) {
+            throw new NotAvailableException(NotAvailableException.Reason.CONFLICT,
+                    "There are reservations already in this date range");
+        }
+    }
+
+    private void releaseDays(Long reservationId) {
+        if (commitMode == CommitMode.DAY_SLOT) {
+            reservationDayRepository.deleteAllByReservationId(reservationId);
+        }
+    }
+
+    private void releaseDays(Long reservationId, Set<LocalDate> days) {
+        if (commitMode == CommitMode.DAY_SLOT && !days.isEmpty()) {
+            reservationDayRepository.deleteAllByReservationIdAndDayIn(reservationId, days);
+        }
+    }
+
+    private <T> T inTransaction(ReservationMetrics.ReservationCall<T> call) throws NotAvailableException {
+        try {
+            return transactionTemplate.execute(status -> {
+                try {
+                    return call.call();
+                } catch (NotAvailableException ex) {
+                    throw new RejectedException(ex);
+                }
+            });
+        } catch (RejectedException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    /**
+     * Carries a {@link NotAvailableException} out of a {@link TransactionTemplate} callback, rolling it back.
+     */
+    private static class RejectedException extends RuntimeException {
+
+        private RejectedException(NotAvailableException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized NotAvailableException getCause() {
+            return (NotAvailableException) super.getCause();
+        }
     }
 }
@@ -0,0 +1,76 @@
+package com.techtao.campsite.service;
+
+import com.techtao.campsite.domain.exception.NotAvailableException;
+import com.techtao.campsite.metrics.ReservationMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Runs the reservation writes on a bounded pool of their own, so a booking rush waiting on the day locks ties up
+ * these threads instead of the servlet workers and the searches keep being answered. Once the queue is full a write
+ * is rejected right away rather than waiting behind the others.
+ *
+ * @author rantao
+ */
+@Component
+public class ReservationWriteExecutor {
+
+    @Autowired
+    private ReservationMetrics reservationMetrics;
+
+    @Value("${reservation.writes.threads:16}")
+    private int threads;
+
+    @Value("${reservation.writes.queue-capacity:200}")
+    private int queueCapacity;
+
+    private ThreadPoolExecutor executor;
+
+    @PostConstruct
+    public void start() {
+        AtomicInteger count = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+                    Thread writer = new Thread(runnable, "reservation-writer-" + count.getAndIncrement());
+                    writer.setDaemon(true);
+                    return writer;
+                });
+        reservationMetrics.monitorExecutor(executor, "reservation.writes");
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Queue a write.
+     *
+     * @param operation the operation name, e.g. reserve
+     * @param write the write to run
+     * @param <T> the type of the result
+     * @return the future result of the write
+     * @throws NotAvailableException when the queue is full
+     */
+    public <T> CompletableFuture<T> submit(String operation, Supplier<T> write) throws NotAvailableException {
+        try {
+            return CompletableFuture.supplyAsync(write, executor);
+        } catch (RejectedExecutionException ex) {
+            reservationMetrics.recordWriteRejected(operation);
+            throw new NotAvailableException(NotAvailableException.Reason.OVERLOADED,
+                    "Too many reservations in progress, please try again.");
+        }
+    }
+}
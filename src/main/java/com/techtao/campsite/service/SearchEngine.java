@@ -0,0 +1,20 @@
+package com.techtao.campsite.service;
+
+/**
+ * The ways a search not answered by the occupancy index finds the free dates, set by
+ * {@code reservation.search-engine}.
+ *
+ * @author rantao
+ */
+public enum SearchEngine {
+
+    /**
+     * Load the overlapping reservations and walk them in the JVM.
+     */
+    ENTITY,
+
+    /**
+     * Let the database compute the gaps between the reservations with window functions.
+     */
+    SQL
+}
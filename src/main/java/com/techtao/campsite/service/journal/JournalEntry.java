@@ -0,0 +1,22 @@
+package com.techtao.campsite.service.journal;
+
+import com.techtao.campsite.domain.event.ReservationChangedEvent;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * A reservation change read back from the journal, with the sequence number it was written under.
+ *
+ * @author rantao
+ */
+@Getter
+@ToString
+@AllArgsConstructor
+public class JournalEntry {
+
+    private final long sequence;
+
+    private final ReservationChangedEvent event;
+
+}
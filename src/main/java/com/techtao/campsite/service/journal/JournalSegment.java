@@ -0,0 +1,165 @@
+package com.techtao.campsite.service.journal;
+
+import com.techtao.campsite.domain.event.ReservationChangedEvent;
+import com.techtao.campsite.domain.model.DateRange;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+/**
+ * One memory-mapped file of the journal. A record is its length followed by the sequence, the change type, the
+ * reservation id (0 for the days a reload of the index found changed), the site id, the previous and current epoch
+ * days, an absent range being written as {@link Long#MIN_VALUE}, and the version of the row ({@link Long#MIN_VALUE}
+ * when not known, missing from the records written before it was kept). The length is written last, so a reader
+ * stops at the first zero length and never sees a half written record.
+ *
+ * @author rantao
+ */
+final class JournalSegment {
+
+    private static final int HEADER_SIZE = Integer.BYTES;
+    private static final int FIXED_SIZE = Long.BYTES + Byte.BYTES + Long.BYTES + Short.BYTES + 5 * Long.BYTES;
+    private static final long ABSENT = Long.MIN_VALUE;
+    private static final long NO_RESERVATION = 0L;
+
+    private final Path path;
+    private final long firstSequence;
+    private final MappedByteBuffer buffer;
+    // Written by the appending thread only, after the record it covers
+    private volatile int end;
+    private long lastSequence;
+
+    private JournalSegment(Path path, long firstSequence, MappedByteBuffer buffer) {
+        this.path = path;
+        this.firstSequence = firstSequence;
+        this.buffer = buffer;
+        this.lastSequence = firstSequence - 1;
+        int position = 0;
+        while (position + HEADER_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + HEADER_SIZE + length > buffer.capacity()) {
+                break;
+            }
+            lastSequence = buffer.getLong(position + HEADER_SIZE);
+            position += HEADER_SIZE + length;
+        }
+        this.end = position;
+    }
+
+    /**
+     * Map a segment file, creating it with the given size when it does not exist yet.
+     */
+    static JournalSegment open(Path path, long firstSequence, int size) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            // The mapping stays valid once the channel is closed
+            long length = channel.size() > 0 ? channel.size() : size;
+            return new JournalSegment(path, firstSequence, channel.map(FileChannel.MapMode.READ_WRITE, 0, length));
+        }
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    long getFirstSequence() {
+        return firstSequence;
+    }
+
+    long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * Append a change, the caller serializes the appends.
+     *
+     * @return false when the segment has no room left for it
+     */
+    boolean append(long sequence, ReservationChangedEvent event) {
+        byte[] siteId = event.getSiteId().getBytes(StandardCharsets.UTF_8);
+        int length = FIXED_SIZE + siteId.length;
+        // Keep room for the zero length that ends the records
+        if (end + HEADER_SIZE + length + HEADER_SIZE > buffer.capacity()) {
+            return false;
+        }
+        ByteBuffer record = buffer.duplicate();
+        record.position(end + HEADER_SIZE);
+        record.putLong(sequence)
+                .put((byte) event.getType().ordinal())
+                .putLong(Objects.isNull(event.getReservationId()) ? NO_RESERVATION : event.getReservationId())
+                .putShort((short) siteId.length)
+                .put(siteId);
+        putRange(record, event.getPrevious());
+        putRange(record, event.getCurrent());
+        record.putLong(Objects.isNull(event.getVersion()) ? ABSENT : event.getVersion());
+        buffer.putInt(end, length);
+        lastSequence = sequence;
+        end += HEADER_SIZE + length;
+        return true;
+    }
+
+    /**
+     * Read the changes written after the given sequence, up to the last complete record.
+     *
+     * @return the sequence of the last change read, or the given one when there was none
+     */
+    long read(long afterSequence, Consumer<JournalEntry> consumer) {
+        ByteBuffer records = buffer.duplicate();
+        int limit = end;
+        int position = 0;
+        long last = afterSequence;
+        while (position < limit) {
+            int length = records.getInt(position);
+            records.position(position + HEADER_SIZE);
+            long sequence = records.getLong();
+            if (sequence > afterSequence) {
+                consumer.accept(new JournalEntry(sequence, readEvent(records, position + HEADER_SIZE + length)));
+                last = sequence;
+            }
+            position += HEADER_SIZE + length;
+        }
+        return last;
+    }
+
+    void force() {
+        buffer.force();
+    }
+
+    private static ReservationChangedEvent readEvent(ByteBuffer record, int recordEnd) {
+        ReservationChangedEvent.Type type = ReservationChangedEvent.Type.values()[record.get()];
+        long reservationId = record.getLong();
+        Long id = reservationId == NO_RESERVATION ? null : reservationId;
+        byte[] siteId = new byte[record.getShort()];
+        record.get(siteId);
+        DateRange previous = getRange(record);
+        DateRange current = getRange(record);
+        long version = record.position() + Long.BYTES <= recordEnd ? record.getLong() : ABSENT;
+        return new ReservationChangedEvent(type, new String(siteId, StandardCharsets.UTF_8), id, previous, current,
+                version == ABSENT ? null : version);
+    }
+
+    private static void putRange(ByteBuffer record, DateRange range) {
+        if (Objects.isNull(range)) {
+            record.putLong(ABSENT).putLong(ABSENT);
+        } else {
+            record.putLong(range.startFrom.toEpochDay()).putLong(range.endTo.toEpochDay());
+        }
+    }
+
+    private static DateRange getRange(ByteBuffer record) {
+        long startFrom = record.getLong();
+        long endTo = record.getLong();
+        if (startFrom == ABSENT) {
+            return null;
+        }
+        return new DateRange(LocalDate.ofEpochDay(startFrom), LocalDate.ofEpochDay(endTo));
+    }
+}
@@ -0,0 +1,377 @@
+package com.techtao.campsite.service.journal;
+
+import com.techtao.campsite.domain.event.ReservationChangedEvent;
+import com.techtao.campsite.persistence.projection.ReservationWatermark;
+import com.techtao.campsite.persistence.repository.ReservationRepository;
+import com.techtao.campsite.service.OccupancyIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * An append-only journal of the reservation changes applied to the {@link OccupancyIndex}, kept in memory-mapped
+ * segment files, with a compact snapshot of the occupied days taken every {@code reservation.journal.snapshot-every}
+ * changes, after every load of the index and on shutdown. A snapshot records the high-water mark of the reservation
+ * table its days match, and every change the version of its row, so the mark is known after any change replayed on
+ * top. The next start, after a shutdown or a crash alike, restores the index from the last snapshot and the journal
+ * tail instead of scanning the table, unless the replayed mark differs from the table's: another instance, SQL, a
+ * restore of the database or changes lost with the crash. The index loads from the database then. The changes
+ * are appended while the index holds the lock of their site, so replaying them in sequence rebuilds the same days.
+ * Other processes can follow the changes with {@link #tail(long, Consumer)} instead of polling the database.
+ * It is never initialized lazily, nothing else would create it before the first change.
+ *
+ * @author rantao
+ */
+@Component
+@Lazy(false)
+public class ReservationJournal {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReservationJournal.class);
+
+    private static final String SEGMENT_PREFIX = "reservations-";
+    private static final String SEGMENT_SUFFIX = ".journal";
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".bin";
+    private static final String SNAPSHOT_TEMPORARY = "snapshot.tmp";
+    private static final int SNAPSHOT_MAGIC = 0x43534a33;
+
+    @Autowired
+    private OccupancyIndex occupancyIndex;
+
+    @Autowired
+    private ReservationRepository reservationRepository;
+
+    @Value("${reservation.journal.enabled:false}")
+    private boolean enabled;
+
+    @Value("${reservation.journal.dir:journal}")
+    private String dir;
+
+    @Value("${reservation.journal.segment-size-mb:64}")
+    private int segmentSizeMb;
+
+    @Value("${reservation.journal.snapshot-every:10000}")
+    private long snapshotEvery;
+
+    @Value("${reservation.journal.force-millis:1000}")
+    private long forceMillis;
+
+    private final NavigableMap<Long, JournalSegment> segments = new ConcurrentSkipListMap<>();
+    private Path directory;
+    private ScheduledExecutorService maintenance;
+    // Guarded by this
+    private JournalSegment active;
+    private long sinceSnapshot;
+    private boolean open;
+    private volatile long lastSequence;
+
+    @PostConstruct
+    public void start() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        directory = Paths.get(dir);
+        Files.createDirectories(directory);
+        long snapshotSequence = latestSnapshot().map(ReservationJournal::sequenceOf).orElse(0L);
+        for (Path path : list(SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+            long firstSequence = sequenceOf(path);
+            segments.put(firstSequence, JournalSegment.open(path, firstSequence, segmentSize()));
+        }
+        lastSequence = segments.isEmpty() ? snapshotSequence
+                : Math.max(segments.lastEntry().getValue().getLastSequence(), snapshotSequence);
+        active = segments.isEmpty() ? roll(lastSequence + 1) : segments.lastEntry().getValue();
+        recover();
+
+        maintenance = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "reservation-journal");
+            thread.setDaemon(true);
+            return thread;
+        });
+        maintenance.scheduleWithFixedDelay(this::force, forceMillis, forceMillis, TimeUnit.MILLISECONDS);
+        synchronized (this) {
+            open = true;
+        }
+        occupancyIndex.addAppliedListener(this::append);
+        // A load sets a mark no change in the journal leads to
+        occupancyIndex.addLoadedListener(this::scheduleSnapshot);
+    }
+
+    @PreDestroy
+    public void stop() throws IOException, InterruptedException {
+        if (!enabled) {
+            return;
+        }
+        synchronized (this) {
+            open = false;
+        }
+        maintenance.shutdown();
+        maintenance.awaitTermination(10, TimeUnit.SECONDS);
+        force();
+        // A copy of the index, so it holds the changes even when the journal could not take them
+        snapshot();
+    }
+
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * Read the changes written after the given sequence, oldest first.
+     *
+     * @param afterSequence the last sequence the caller has seen, 0 to start from the oldest change kept
+     * @param consumer the consumer of the changes
+     * @return the sequence of the last change read, to pass to the next call
+     * @throws IllegalStateException when the changes right after the sequence were compacted away already
+     */
+    public long tail(long afterSequence, Consumer<JournalEntry> consumer) {
+        if (!enabled) {
+            throw new IllegalStateException("The reservation journal is disabled");
+        }
+        Map.Entry<Long, JournalSegment> first = segments.firstEntry();
+        if (Objects.nonNull(first) && first.getKey() > afterSequence + 1) {
+            throw new IllegalStateException("The journal starts at sequence " + first.getKey()
+                    + ", read the reservations from the database again");
+        }
+        Long from = segments.floorKey(afterSequence + 1);
+        long last = afterSequence;
+        for (JournalSegment segment : segments.tailMap(Objects.isNull(from) ? 0L : from).values()) {
+            last = segment.read(last, consumer);
+        }
+        return last;
+    }
+
+    private void append(ReservationChangedEvent event) {
+        boolean snapshotDue;
+        synchronized (this) {
+            if (!open) {
+                // Replaying the journal misses it, so the mark of the next start will differ
+                return;
+            }
+            long sequence = lastSequence + 1;
+            try {
+                if (!active.append(sequence, event)) {
+                    active = roll(sequence);
+                    active.append(sequence, event);
+                }
+            } catch (IOException ex) {
+                LOGGER.error("Could not append to the reservation journal, the next start loads from the database",
+                        ex);
+                open = false;
+                return;
+            }
+            lastSequence = sequence;
+            snapshotDue = ++sinceSnapshot >= snapshotEvery;
+            if (snapshotDue) {
+                sinceSnapshot = 0;
+            }
+        }
+        if (snapshotDue) {
+            scheduleSnapshot();
+        }
+    }
+
+    private void scheduleSnapshot() {
+        try {
+            maintenance.execute(this::snapshotQuietly);
+        } catch (RejectedExecutionException ex) {
+            // Stopping, the final snapshot is taken by stop()
+        }
+    }
+
+    private void recover() {
+        long started = System.nanoTime();
+        try {
+            Path path = latestSnapshot().orElse(null);
+            if (Objects.isNull(path)) {
+                LOGGER.info("No snapshot in {}, the occupancy index loads from the database", directory);
+                return;
+            }
+            long fromEpochDay;
+            ReservationWatermark watermark = null;
+            Map<String, BitSet> occupiedDays = new HashMap<>();
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+                if (in.readInt() != SNAPSHOT_MAGIC) {
+                    throw new IOException("Not a reservation journal snapshot: " + path);
+                }
+                fromEpochDay = in.readLong();
+                if (in.readBoolean()) {
+                    watermark = new ReservationWatermark(readNullable(in), readNullable(in), readNullable(in));
+                }
+                int siteCount = in.readInt();
+                for (int i = 0; i < siteCount; i++) {
+                    String siteId = in.readUTF();
+                    byte[] days = new byte[in.readInt()];
+                    in.readFully(days);
+                    occupiedDays.put(siteId, BitSet.valueOf(days));
+                }
+            }
+            List<ReservationChangedEvent> changes = new ArrayList<>();
+            tail(sequenceOf(path), entry -> changes.add(entry.getEvent()));
+            ReservationWatermark replayed = watermark;
+            for (ReservationChangedEvent change : changes) {
+                replayed = OccupancyIndex.advance(replayed, change);
+            }
+            ReservationWatermark current = reservationRepository.findWatermark();
+            if (Objects.isNull(replayed) || !replayed.equals(current)) {
+                LOGGER.info("The reservation table is at {} instead of {} after {} and {} journal entries, the "
+                        + "occupancy index loads from the database", current, replayed, path.getFileName(),
+                        changes.size());
+                return;
+            }
+            occupancyIndex.restore(fromEpochDay, occupiedDays, changes, watermark);
+            LOGGER.info("Occupancy index restored from {} and {} journal entries in {} ms", path.getFileName(),
+                    changes.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+        } catch (IOException | RuntimeException ex) {
+            LOGGER.warn("Could not restore the occupancy index from the journal, it loads from the database", ex);
+        }
+    }
+
+    /**
+     * Write the occupied days of every site, then drop the older snapshots and the segments it covers. The days, the
+     * mark and the sequence are read while no change is applied, so exactly the changes after the sequence are
+     * replayed on top of them.
+     */
+    private void snapshot() throws IOException {
+        if (!occupancyIndex.isReady()) {
+            return;
+        }
+        long[] copiedAt = new long[1];
+        ReservationWatermark[] copiedWatermark = new ReservationWatermark[1];
+        Map<String, BitSet> occupiedDays = occupancyIndex.withChangesPaused(() -> {
+            copiedAt[0] = lastSequence;
+            copiedWatermark[0] = occupancyIndex.getWatermark();
+            return occupancyIndex.copyOccupiedDays();
+        });
+        long sequence = copiedAt[0];
+        long fromEpochDay = occupancyIndex.getBaseEpochDay();
+        ReservationWatermark watermark = copiedWatermark[0];
+        Path temporary = directory.resolve(SNAPSHOT_TEMPORARY);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(temporary)))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(fromEpochDay);
+            out.writeBoolean(Objects.nonNull(watermark));
+            if (Objects.nonNull(watermark)) {
+                writeNullable(out, watermark.getCount());
+                writeNullable(out, watermark.getIds());
+                writeNullable(out, watermark.getVersions());
+            }
+            out.writeInt(occupiedDays.size());
+            for (Map.Entry<String, BitSet> site : occupiedDays.entrySet()) {
+                byte[] days = site.getValue().toByteArray();
+                out.writeUTF(site.getKey());
+                out.writeInt(days.length);
+                out.write(days);
+            }
+        }
+        Path target = directory.resolve(fileName(SNAPSHOT_PREFIX, sequence, SNAPSHOT_SUFFIX));
+        Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        compact(target, sequence);
+    }
+
+    private void snapshotQuietly() {
+        try {
+            snapshot();
+        } catch (IOException | RuntimeException ex) {
+            LOGGER.warn("Could not take a snapshot of the occupancy index", ex);
+        }
+    }
+
+    private void compact(Path snapshot, long sequence) throws IOException {
+        for (Path path : list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX)) {
+            if (!path.equals(snapshot)) {
+                Files.deleteIfExists(path);
+            }
+        }
+        // A segment can go once the next one starts within the snapshot, the last one is never dropped
+        Long next = segments.higherKey(segments.firstKey());
+        while (Objects.nonNull(next) && next <= sequence + 1) {
+            JournalSegment segment = segments.pollFirstEntry().getValue();
+            Files.deleteIfExists(segment.getPath());
+            next = segments.higherKey(segments.firstKey());
+        }
+    }
+
+    private void force() {
+        segments.values().forEach(JournalSegment::force);
+    }
+
+    private JournalSegment roll(long firstSequence) throws IOException {
+        Path path = directory.resolve(fileName(SEGMENT_PREFIX, firstSequence, SEGMENT_SUFFIX));
+        JournalSegment segment = JournalSegment.open(path, firstSequence, segmentSize());
+        segments.put(firstSequence, segment);
+        return segment;
+    }
+
+    private int segmentSize() {
+        return Math.multiplyExact(segmentSizeMb, 1024 * 1024);
+    }
+
+    private Optional<Path> latestSnapshot() throws IOException {
+        List<Path> snapshots = list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+        return snapshots.isEmpty() ? Optional.empty() : Optional.of(snapshots.get(snapshots.size() - 1));
+    }
+
+    /**
+     * The files with the given prefix and suffix, by sequence as the sequences are zero padded.
+     */
+    private List<Path> list(String prefix, String suffix) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> path.getFileName().toString().startsWith(prefix)
+                    && path.getFileName().toString().endsWith(suffix))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static void writeNullable(DataOutputStream out, Long value) throws IOException {
+        out.writeBoolean(Objects.nonNull(value));
+        out.writeLong(Objects.isNull(value) ? 0L : value);
+    }
+
+    private static Long readNullable(DataInputStream in) throws IOException {
+        boolean present = in.readBoolean();
+        long value = in.readLong();
+        return present ? value : null;
+    }
+
+    private static String fileName(String prefix, long sequence, String suffix) {
+        return prefix + String.format("%020d", sequence) + suffix;
+    }
+
+    private static long sequenceOf(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(name.indexOf('-') + 1, name.lastIndexOf('.')));
+    }
+}
@@ -0,0 +1,84 @@
+package com.techtao.campsite.service.lock;
+
+import com.techtao.campsite.metrics.ReservationMetrics;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.Objects;
+
+/**
+ * The locks held by one request, taken from a {@link ReservationCoordinator}.
+ *
+ * @author rantao
+ */
+public abstract class Lease {
+
+    private final ReservationMetrics reservationMetrics;
+    private long acquiredAt;
+    private boolean acquired;
+    private boolean released;
+
+    protected Lease(ReservationMetrics reservationMetrics) {
+        this.reservationMetrics = reservationMetrics;
+    }
+
+    /**
+     * A lease holding no lock, for callers that rely on something else to prevent double booking.
+     *
+     * @return an empty {@link Lease}
+     */
+    public static Lease none() {
+        return new Lease(null) {
+            @Override
+            protected void unlock() {
+            }
+        };
+    }
+
+    /**
+     * Give back everything the lease holds, only the first call has any effect.
+     */
+    public void release() {
+        if (released) {
+            return;
+        }
+        released = true;
+        unlock();
+        if (acquired && Objects.nonNull(reservationMetrics)) {
+            reservationMetrics.recordLockHold(System.nanoTime() - acquiredAt);
+        }
+    }
+
+    /**
+     * Keep the locks until the current transaction completes, so no other request can check the same days
+     * before the changes are committed. Without a transaction the locks are released immediately.
+     */
+    public void releaseAfterCompletion() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    release();
+                }
+            });
+        } else {
+            release();
+        }
+    }
+
+    /**
+     * Mark every lock as taken, the hold time is measured from here.
+     *
+     * @return the time the locks were taken, from {@link System#nanoTime()}
+     */
+    protected long acquired() {
+        acquiredAt = System.nanoTime();
+        acquired = true;
+        return acquiredAt;
+    }
+
+    /**
+     * Unlock whatever has been locked so far, called once.
+     */
+    protected abstract void unlock();
+}
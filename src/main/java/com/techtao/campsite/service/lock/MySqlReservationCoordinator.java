@@ -0,0 +1,150 @@
+package com.techtao.campsite.service.lock;
+
+import com.techtao.campsite.metrics.ReservationMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.jdbc.CannotGetJdbcConnectionException;
+import org.springframework.jdbc.datasource.ConnectionHolder;
+import org.springframework.jdbc.datasource.DataSourceUtils;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.Objects;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Named MySQL locks, one per site and day, so every instance sharing the database waits for the same days.
+ * The locks are taken on the connection of the reservation transaction, in ascending day order, and kept until it
+ * completes, so a write holds one pooled connection and not two. Outside a transaction they take a connection of
+ * their own. They belong to the database session, so they are dropped if an instance dies while holding them.
+ *
+ * @author rantao
+ */
+@Component
+@ConditionalOnProperty(name = "reservation.coordinator", havingValue = "mysql")
+public class MySqlReservationCoordinator implements ReservationCoordinator {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MySqlReservationCoordinator.class);
+
+    // Lock names are limited to 64 characters, enough for the prefix, a 45 characters site id and a date
+    private static final String LOCK_PREFIX = "cs/";
+
+    // The one of the transaction manager, the service only takes leases inside read-write transactions, so the
+    // connection resolves to the primary
+    @Autowired
+    private DataSource dataSource;
+
+    @Autowired
+    private ReservationMetrics reservationMetrics;
+
+    @Override
+    public Lease tryLock(String siteId, Collection<LocalDate> days, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long start = System.nanoTime();
+        long deadline = start + unit.toNanos(timeout);
+        NamedLockLease lease;
+        try {
+            // Bound by the transaction manager, it stays open until after the lease is released at the completion
+            if (TransactionSynchronizationManager.getResource(dataSource) instanceof ConnectionHolder) {
+                lease = new NamedLockLease(reservationMetrics, dataSource, DataSourceUtils.getConnection(dataSource),
+                        false);
+            } else {
+                lease = new NamedLockLease(reservationMetrics, dataSource, dataSource.getConnection(), true);
+            }
+        } catch (SQLException | CannotGetJdbcConnectionException ex) {
+            throw new DataAccessResourceFailureException("Cannot open a connection for the reservation locks", ex);
+        }
+
+        try {
+            for (LocalDate day : new TreeSet<>(days)) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                // GET_LOCK waits in whole seconds, round up so a short timeout still waits at all
+                long remainingSeconds = (Math.max(deadline - System.nanoTime(), 0) + 999_999_999L) / 1_000_000_000L;
+                if (!lease.lock(LOCK_PREFIX + siteId + "/" + day, remainingSeconds)) {
+                    lease.release();
+                    reservationMetrics.recordLockWait(System.nanoTime() - start, false);
+                    return null;
+                }
+            }
+        } catch (InterruptedException e) {
+            lease.release();
+            throw e;
+        } catch (SQLException ex) {
+            lease.release();
+            throw new DataAccessResourceFailureException("Cannot take the reservation locks", ex);
+        }
+        reservationMetrics.recordLockWait(lease.acquired() - start, true);
+        return lease;
+    }
+
+    private static class NamedLockLease extends Lease {
+
+        private final DataSource dataSource;
+        private final Connection connection;
+        private final boolean own;
+
+        private NamedLockLease(ReservationMetrics reservationMetrics, DataSource dataSource, Connection connection,
+                               boolean own) {
+            super(reservationMetrics);
+            this.dataSource = dataSource;
+            this.connection = connection;
+            this.own = own;
+        }
+
+        /**
+         * @return true when the lock was taken, false when it was still held by another session at the timeout
+         */
+        private boolean lock(String name, long timeoutSeconds) throws SQLException {
+            try (PreparedStatement statement = connection.prepareStatement("SELECT GET_LOCK(?, ?)")) {
+                statement.setString(1, name);
+                statement.setLong(2, timeoutSeconds);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    resultSet.next();
+                    Object result = resultSet.getObject(1);
+                    if (Objects.isNull(result)) {
+                        throw new SQLException("GET_LOCK failed for " + name);
+                    }
+                    return ((Number) result).intValue() == 1;
+                }
+            }
+        }
+
+        // The connection goes back to the pool with its session, so every lock must be released before that. A
+        // transaction takes a single lease, so all the locks of the session are the ones of this lease
+        @Override
+        protected void unlock() {
+            try (PreparedStatement statement = connection.prepareStatement("SELECT RELEASE_ALL_LOCKS()")) {
+                statement.executeQuery().close();
+            } catch (SQLException ex) {
+                LOGGER.warn("Could not release the reservation locks", ex);
+            } finally {
+                if (own) {
+                    closeQuietly();
+                } else {
+                    DataSourceUtils.releaseConnection(connection, dataSource);
+                }
+            }
+        }
+
+        private void closeQuietly() {
+            try {
+                connection.close();
+            } catch (SQLException ex) {
+                LOGGER.warn("Could not close the connection of the reservation locks", ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.techtao.campsite.service.lock;
+
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializes the reservation changes touching the same days of a site, so two requests can never both pass the
+ * availability check for the same day. The implementation is chosen by the reservation.coordinator property:
+ * in-process ({@link DayLocks}) guards a single instance, mysql ({@link MySqlReservationCoordinator}) guards every
+ * instance sharing the database.
+ *
+ * @author rantao
+ */
+public interface ReservationCoordinator {
+
+    /**
+     * Try to lock all the given days of a site within the timeout.
+     *
+     * @param siteId the site of the days
+     * @param days the days to lock
+     * @param timeout the maximum time to wait for all the locks
+     * @param unit the time unit of the timeout
+     * @return the acquired {@link Lease}, or null when the locks could not be taken in time
+     * @throws InterruptedException when the thread is interrupted while waiting
+     */
+    Lease tryLock(String siteId, Collection<LocalDate> days, long timeout, TimeUnit unit) throws InterruptedException;
+
+    /**
+     * List every day from the start date to the end date, both inclusive.
+     *
+     * @param startFrom the first day
+     * @param endTo the last day
+     * @return the days of the range
+     */
+    static Set<LocalDate> daysOf(LocalDate startFrom, LocalDate endTo) {
+        Set<LocalDate> days = new TreeSet<>();
+        for (LocalDate day = startFrom; !day.isAfter(endTo); day = day.plusDays(1)) {
+            days.add(day);
+        }
+        return days;
+    }
+}
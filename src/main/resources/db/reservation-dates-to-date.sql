@@ -0,0 +1,22 @@
+-- Moves reservation.startFrom and reservation.endTo from DATETIME to DATE.
+--
+-- The old rows hold the midnight of the app server time zone, read back through the time zone of the connection,
+-- so a row could be a few hours off midnight when the two differed. Adding 12 hours before dropping the time rounds
+-- each value to its nearest day, which is the day it was booked for as long as the zones were less than 12 hours
+-- apart. Stop the application while it runs, the old build cannot read the DATE columns.
+
+ALTER TABLE `campsite`.`reservation`
+  ADD COLUMN `startDay` DATE NULL AFTER `startFrom`,
+  ADD COLUMN `endDay` DATE NULL AFTER `endTo`;
+
+UPDATE `campsite`.`reservation`
+  SET `startDay` = DATE(DATE_ADD(`startFrom`, INTERVAL 12 HOUR)),
+      `endDay` = DATE(DATE_ADD(`endTo`, INTERVAL 12 HOUR));
+
+ALTER TABLE `campsite`.`reservation`
+  DROP INDEX `site_daterange`,
+  DROP COLUMN `startFrom`,
+  DROP COLUMN `endTo`,
+  CHANGE COLUMN `startDay` `startFrom` DATE NOT NULL,
+  CHANGE COLUMN `endDay` `endTo` DATE NOT NULL,
+  ADD INDEX `site_daterange` (`siteId` ASC, `startFrom` ASC, `endTo` ASC);
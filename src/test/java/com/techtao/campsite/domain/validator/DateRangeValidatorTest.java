@@ -1,9 +1,9 @@
 package com.techtao.campsite.domain.validator;
 
-import org.junit.runner.RunWith;
-import org.mockito.junit.MockitoJUnitRunner;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.junit.jupiter.MockitoExtension;
 
-@RunWith(MockitoJUnitRunner.class)
+@ExtendWith(MockitoExtension.class)
 public class DateRangeValidatorTest {
 
     // I skipped these junit tests, focusing on Integration Test now
@@ -0,0 +1,159 @@
+package com.techtao.campsite.service;
+
+import com.techtao.campsite.domain.exception.NotAvailableException;
+import com.techtao.campsite.domain.model.Sites;
+import com.techtao.campsite.metrics.ReservationMetrics;
+import com.techtao.campsite.persistence.entity.Reservation;
+import com.techtao.campsite.persistence.repository.ReservationRepository;
+import com.techtao.campsite.service.lock.ReservationCoordinator;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.time.LocalDate;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+@ExtendWith(MockitoExtension.class)
+public class GroupCommitterTest {
+
+    @Mock
+    private ReservationRepository reservationRepository;
+
+    @Mock
+    private ApplicationEventPublisher eventPublisher;
+
+    @Mock
+    private ReplicationLagGuard replicationLagGuard;
+
+    @Mock
+    private ReservationMetrics reservationMetrics;
+
+    @Mock
+    private PlatformTransactionManager transactionManager;
+
+    @InjectMocks
+    private GroupCommitter groupCommitter;
+
+    private LocalDate currentDate;
+    private final CountDownLatch saving = new CountDownLatch(1);
+    private final CountDownLatch saved = new CountDownLatch(1);
+
+    @BeforeEach
+    public void setUp() {
+        currentDate = LocalDate.now();
+        AtomicLong sequence = new AtomicLong();
+        // Not reached by the tests which never start a group
+        Mockito.lenient().when(reservationRepository.save(Mockito.any(Reservation.class))).thenAnswer(invocation -> {
+            Reservation reservation = invocation.getArgument(0);
+            if ("slow".equals(reservation.getUsername())) {
+                saving.countDown();
+                saved.await(5, TimeUnit.SECONDS);
+            } else if ("broken".equals(reservation.getUsername())) {
+                throw new DataAccessResourceFailureException("Connection lost");
+            }
+            reservation.setId(sequence.incrementAndGet());
+            return reservation;
+        });
+        ReflectionTestUtils.setField(groupCommitter, "enabled", true);
+        ReflectionTestUtils.setField(groupCommitter, "maxBatch", 10);
+        ReflectionTestUtils.setField(groupCommitter, "maxDelayMillis", 200L);
+        ReflectionTestUtils.setField(groupCommitter, "capacity", 10);
+        ReflectionTestUtils.setField(groupCommitter, "coordinator", "in-process");
+        groupCommitter.start();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        groupCommitter.stop();
+    }
+
+    @Test
+    public void testCommitTheClaimedReservationsTogether() throws Exception {
+        CompletableFuture<Long> first = groupCommitter.submit(reservation(5, 7), days(5, 7));
+        CompletableFuture<Long> second = groupCommitter.submit(reservation(10, 10), days(10, 10));
+        Assertions.assertTrue(groupCommitter.isClaimed(Sites.DEFAULT_SITE_ID, days(7, 8)));
+
+        try {
+            groupCommitter.submit(reservation(6, 6), days(6, 6));
+            Assertions.fail("A claimed day should be rejected");
+        } catch (NotAvailableException ex) {
+            Assertions.assertEquals(NotAvailableException.Reason.CONFLICT, ex.getReason());
+        }
+
+        Assertions.assertNotEquals(first.get(), second.get());
+        Mockito.verify(transactionManager).commit(Mockito.any());
+        Mockito.verify(reservationMetrics).recordGroupCommit(2);
+        Assertions.assertFalse(groupCommitter.isClaimed(Sites.DEFAULT_SITE_ID, days(5, 10)));
+    }
+
+    @Test
+    public void testCancelAQueuedReservation() throws Exception {
+        CompletableFuture<Long> first = groupCommitter.submit(reservation("slow", 5, 7), days(5, 7));
+        Assertions.assertTrue(saving.await(5, TimeUnit.SECONDS));
+        CompletableFuture<Long> second = groupCommitter.submit(reservation(10, 10), days(10, 10));
+
+        Assertions.assertTrue(groupCommitter.cancel(second));
+        Assertions.assertFalse(groupCommitter.isClaimed(Sites.DEFAULT_SITE_ID, days(10, 10)));
+        Assertions.assertEquals(NotAvailableException.Reason.TIMEOUT, reasonOf(second));
+        // Its group is being committed, the caller has to wait for it
+        Assertions.assertFalse(groupCommitter.cancel(first));
+
+        saved.countDown();
+        Assertions.assertNotNull(first.get());
+    }
+
+    @Test
+    public void testRejectAFailedReservationAsASystemError() throws Exception {
+        CompletableFuture<Long> failed = groupCommitter.submit(reservation("broken", 5, 7), days(5, 7));
+
+        Assertions.assertEquals(NotAvailableException.Reason.SYSTEM_ERROR, reasonOf(failed));
+        Assertions.assertFalse(groupCommitter.isClaimed(Sites.DEFAULT_SITE_ID, days(5, 7)));
+    }
+
+    @Test
+    public void testRefuseToStartWithTheMySqlCoordinator() {
+        GroupCommitter shared = new GroupCommitter();
+        ReflectionTestUtils.setField(shared, "enabled", true);
+        ReflectionTestUtils.setField(shared, "coordinator", "mysql");
+
+        Assertions.assertThrows(IllegalStateException.class, shared::start);
+    }
+
+    private NotAvailableException.Reason reasonOf(CompletableFuture<Long> id) throws InterruptedException {
+        ExecutionException ex = Assertions.assertThrows(ExecutionException.class, id::get);
+        Assertions.assertTrue(ex.getCause() instanceof NotAvailableException);
+        return ((NotAvailableException) ex.getCause()).getReason();
+    }
+
+    private Reservation reservation(int startFrom, int endTo) {
+        return reservation("test", startFrom, endTo);
+    }
+
+    private Reservation reservation(String userName, int startFrom, int endTo) {
+        Reservation reservation = new Reservation();
+        reservation.setUsername(userName);
+        reservation.setEmail("test@test.com");
+        reservation.setStartFrom(currentDate.plusDays(startFrom));
+        reservation.setEndTo(currentDate.plusDays(endTo));
+        return reservation;
+    }
+
+    private Set<LocalDate> days(int startFrom, int endTo) {
+        return ReservationCoordinator.daysOf(currentDate.plusDays(startFrom), currentDate.plusDays(endTo));
+    }
+}
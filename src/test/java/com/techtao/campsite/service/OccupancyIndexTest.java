@@ -0,0 +1,162 @@
+package com.techtao.campsite.service;
+
+import com.techtao.campsite.domain.event.ReservationChangedEvent;
+import com.techtao.campsite.domain.model.DateRange;
+import com.techtao.campsite.domain.model.Sites;
+import com.techtao.campsite.persistence.entity.Reservation;
+import com.techtao.campsite.persistence.projection.ReservationWatermark;
+import com.techtao.campsite.persistence.repository.ReservationRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+@ExtendWith(MockitoExtension.class)
+public class OccupancyIndexTest {
+
+    @Mock
+    private ReservationRepository reservationRepository;
+
+    @InjectMocks
+    private OccupancyIndex occupancyIndex;
+
+    private LocalDate currentDate;
+
+    @BeforeEach
+    public void setUp() {
+        currentDate = LocalDate.now();
+        Mockito.when(reservationRepository.findAllByEndToGreaterThanEqual(Mockito.any()))
+                .thenReturn(Collections.emptyList());
+        occupancyIndex.start();
+        occupancyIndex.load();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        occupancyIndex.stop();
+    }
+
+    @Test
+    public void testFindFreeRangesAroundReservations() {
+        reserve(Sites.DEFAULT_SITE_ID, currentDate.plusDays(10), currentDate.plusDays(10));
+        reserve(Sites.DEFAULT_SITE_ID, currentDate.plusDays(20), currentDate.plusDays(22));
+
+        List<DateRange> dateRanges = occupancyIndex.findFreeRanges(Sites.DEFAULT_SITE_ID,
+                currentDate.plusDays(1), currentDate.plusDays(30));
+
+        Assertions.assertEquals(3, dateRanges.size());
+        Assertions.assertEquals(currentDate.plusDays(9), dateRanges.get(0).endTo);
+        Assertions.assertEquals(currentDate.plusDays(11), dateRanges.get(1).startFrom);
+        Assertions.assertEquals(currentDate.plusDays(19), dateRanges.get(1).endTo);
+        Assertions.assertEquals(currentDate.plusDays(23), dateRanges.get(2).startFrom);
+        Assertions.assertEquals(currentDate.plusDays(30), dateRanges.get(2).endTo);
+    }
+
+    @Test
+    public void testCancelledDatesBecomeFree() {
+        reserve(Sites.DEFAULT_SITE_ID, currentDate.plusDays(5), currentDate.plusDays(7));
+        occupancyIndex.onReservationChanged(new ReservationChangedEvent(ReservationChangedEvent.Type.CANCELLED,
+                Sites.DEFAULT_SITE_ID, 1L, new DateRange(currentDate.plusDays(5), currentDate.plusDays(7)), null));
+
+        List<DateRange> dateRanges = occupancyIndex.findFreeRanges(Sites.DEFAULT_SITE_ID,
+                currentDate.plusDays(1), currentDate.plusDays(30));
+
+        Assertions.assertEquals(1, dateRanges.size());
+        Assertions.assertTrue(occupancyIndex.covers(currentDate.plusDays(1)));
+        Assertions.assertFalse(occupancyIndex.covers(currentDate.minusDays(1)));
+    }
+
+    @Test
+    public void testSitesAreIndexedApart() {
+        long version = occupancyIndex.getVersion("lakeside");
+        reserve(Sites.DEFAULT_SITE_ID, currentDate.plusDays(5), currentDate.plusDays(7));
+
+        List<DateRange> dateRanges = occupancyIndex.findFreeRanges("lakeside",
+                currentDate.plusDays(1), currentDate.plusDays(30));
+
+        Assertions.assertEquals(1, dateRanges.size());
+        Assertions.assertEquals(version, occupancyIndex.getVersion("lakeside"));
+    }
+
+    @Test
+    public void testReloadPublishesTheDaysChangedBehindIt() {
+        reserve(Sites.DEFAULT_SITE_ID, currentDate.plusDays(5), currentDate.plusDays(7));
+        List<ReservationChangedEvent> events = new ArrayList<>();
+        occupancyIndex.addAppliedListener(events::add);
+        long version = occupancyIndex.getVersion(Sites.DEFAULT_SITE_ID);
+
+        // Another instance cancelled the reservation and booked other days
+        Reservation reservation = new Reservation();
+        reservation.setStartFrom(currentDate.plusDays(10));
+        reservation.setEndTo(currentDate.plusDays(12));
+        Mockito.when(reservationRepository.findAllByEndToGreaterThanEqual(Mockito.any()))
+                .thenReturn(Collections.singletonList(reservation));
+        Assertions.assertTrue(occupancyIndex.reload());
+
+        Assertions.assertEquals(2, events.size());
+        Assertions.assertEquals(ReservationChangedEvent.Type.RESERVED, events.get(0).getType());
+        Assertions.assertNull(events.get(0).getReservationId());
+        Assertions.assertEquals(currentDate.plusDays(10), events.get(0).getCurrent().startFrom);
+        Assertions.assertEquals(currentDate.plusDays(12), events.get(0).getCurrent().endTo);
+        Assertions.assertEquals(ReservationChangedEvent.Type.CANCELLED, events.get(1).getType());
+        Assertions.assertEquals(currentDate.plusDays(7), events.get(1).getPrevious().endTo);
+        Assertions.assertTrue(occupancyIndex.getVersion(Sites.DEFAULT_SITE_ID) > version);
+
+        // Nothing changed since, nothing to publish
+        version = occupancyIndex.getVersion(Sites.DEFAULT_SITE_ID);
+        occupancyIndex.reload();
+        Assertions.assertEquals(2, events.size());
+        Assertions.assertEquals(version, occupancyIndex.getVersion(Sites.DEFAULT_SITE_ID));
+    }
+
+    @Test
+    public void testLocalChangesKeepTheIndexFresh() {
+        Mockito.when(reservationRepository.findWatermark()).thenReturn(new ReservationWatermark(0L, null, null));
+        occupancyIndex.reload();
+
+        occupancyIndex.onReservationChanged(new ReservationChangedEvent(ReservationChangedEvent.Type.RESERVED,
+                Sites.DEFAULT_SITE_ID, 5L, null, new DateRange(currentDate.plusDays(5), currentDate.plusDays(7)), 0L));
+        occupancyIndex.onReservationChanged(new ReservationChangedEvent(ReservationChangedEvent.Type.UPDATED,
+                Sites.DEFAULT_SITE_ID, 5L, new DateRange(currentDate.plusDays(5), currentDate.plusDays(7)),
+                new DateRange(currentDate.plusDays(6), currentDate.plusDays(8))));
+        Mockito.when(reservationRepository.findWatermark()).thenReturn(new ReservationWatermark(1L, 5L, 1L));
+        Assertions.assertTrue(occupancyIndex.isFresh());
+
+        occupancyIndex.onReservationChanged(new ReservationChangedEvent(ReservationChangedEvent.Type.CANCELLED,
+                Sites.DEFAULT_SITE_ID, 5L, new DateRange(currentDate.plusDays(6), currentDate.plusDays(8)), null, 1L));
+        Mockito.when(reservationRepository.findWatermark()).thenReturn(new ReservationWatermark(0L, null, null));
+        Assertions.assertTrue(occupancyIndex.isFresh());
+
+        // Another instance reserved
+        Mockito.when(reservationRepository.findWatermark()).thenReturn(new ReservationWatermark(1L, 6L, 0L));
+        Assertions.assertFalse(occupancyIndex.isFresh());
+    }
+
+    @Test
+    public void testFindFreeRangesUpToTheLastDate() {
+        reserve(Sites.DEFAULT_SITE_ID, currentDate.plusDays(5), currentDate.plusDays(7));
+
+        List<DateRange> dateRanges = occupancyIndex.findFreeRanges(Sites.DEFAULT_SITE_ID,
+                currentDate.plusDays(1), LocalDate.MAX);
+
+        Assertions.assertEquals(2, dateRanges.size());
+        Assertions.assertEquals(LocalDate.MAX, dateRanges.get(1).endTo);
+        Assertions.assertEquals(1, occupancyIndex.findFreeRanges(Sites.DEFAULT_SITE_ID,
+                LocalDate.MAX.minusDays(1), LocalDate.MAX).size());
+    }
+
+    private void reserve(String siteId, LocalDate startFrom, LocalDate endTo) {
+        occupancyIndex.onReservationChanged(new ReservationChangedEvent(ReservationChangedEvent.Type.RESERVED, siteId,
+                1L, null, new DateRange(startFrom, endTo)));
+    }
+}
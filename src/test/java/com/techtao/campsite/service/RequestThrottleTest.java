@@ -0,0 +1,65 @@
+package com.techtao.campsite.service;
+
+import com.techtao.campsite.metrics.ReservationMetrics;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.TimeUnit;
+
+@ExtendWith(MockitoExtension.class)
+public class RequestThrottleTest {
+
+    @Mock
+    private ReservationMetrics reservationMetrics;
+
+    @InjectMocks
+    private RequestThrottle requestThrottle;
+
+    @BeforeEach
+    public void setUp() {
+        ReflectionTestUtils.setField(requestThrottle, "enabled", true);
+        ReflectionTestUtils.setField(requestThrottle, "emailPerSecond", 1.0);
+        ReflectionTestUtils.setField(requestThrottle, "emailBurst", 2);
+        ReflectionTestUtils.setField(requestThrottle, "ipPerSecond", 100.0);
+        ReflectionTestUtils.setField(requestThrottle, "ipBurst", 100);
+        ReflectionTestUtils.setField(requestThrottle, "size", 100L);
+        ReflectionTestUtils.setField(requestThrottle, "idleMinutes", 1L);
+        requestThrottle.init();
+    }
+
+    @Test
+    public void testThrottleAnEmailAfterItsBurst() {
+        Assertions.assertEquals(0, requestThrottle.tryAcquire("test@test.com", "10.0.0.1"));
+        Assertions.assertEquals(0, requestThrottle.tryAcquire("TEST@test.com", "10.0.0.2"));
+        long wait = requestThrottle.tryAcquire("test@test.com", "10.0.0.3");
+        Assertions.assertTrue(wait > 0 && wait <= TimeUnit.SECONDS.toNanos(1));
+        Mockito.verify(reservationMetrics).recordThrottled("email");
+
+        Assertions.assertEquals(0, requestThrottle.tryAcquire("other@test.com", "10.0.0.3"));
+    }
+
+    @Test
+    public void testShareTheEmailBucketWithTheEmailsOfABody() {
+        Assertions.assertEquals(0, requestThrottle.tryAcquire("test@test.com", "10.0.0.1"));
+        Assertions.assertEquals(0, requestThrottle.tryAcquireEmail(" Test@test.com"));
+        Assertions.assertTrue(requestThrottle.tryAcquireEmail("test@test.com") > 0);
+        Assertions.assertEquals(0, requestThrottle.tryAcquireEmail(null));
+        Mockito.verify(reservationMetrics).recordThrottled("email");
+    }
+
+    @Test
+    public void testRefillTheBucketOverTime() {
+        RequestThrottle.TokenBucket bucket = new RequestThrottle.TokenBucket(0);
+        long interval = TimeUnit.MILLISECONDS.toNanos(100);
+        Assertions.assertEquals(0, bucket.take(0, interval, interval));
+        Assertions.assertEquals(interval, bucket.take(0, interval, interval));
+        Assertions.assertEquals(0, bucket.take(interval, interval, interval));
+    }
+}
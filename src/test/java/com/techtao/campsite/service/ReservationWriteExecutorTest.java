@@ -0,0 +1,72 @@
+package com.techtao.campsite.service;
+
+import com.techtao.campsite.domain.exception.NotAvailableException;
+import com.techtao.campsite.metrics.ReservationMetrics;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+
+@ExtendWith(MockitoExtension.class)
+public class ReservationWriteExecutorTest {
+
+    @Mock
+    private ReservationMetrics reservationMetrics;
+
+    @InjectMocks
+    private ReservationWriteExecutor reservationWriteExecutor;
+
+    @BeforeEach
+    public void setUp() {
+        ReflectionTestUtils.setField(reservationWriteExecutor, "threads", 1);
+        ReflectionTestUtils.setField(reservationWriteExecutor, "queueCapacity", 1);
+        reservationWriteExecutor.start();
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        reservationWriteExecutor.stop();
+    }
+
+    @Test
+    public void testRejectWhenTheQueueIsFull() throws Exception {
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<String> first = reservationWriteExecutor.submit("reserve", () -> {
+            running.countDown();
+            await(release);
+            return "1";
+        });
+        running.await();
+        CompletableFuture<String> queued = reservationWriteExecutor.submit("reserve", () -> "2");
+
+        try {
+            reservationWriteExecutor.submit("reserve", () -> "3");
+            Assertions.fail("The third write should be rejected");
+        } catch (NotAvailableException ex) {
+            Assertions.assertEquals(NotAvailableException.Reason.OVERLOADED, ex.getReason());
+        }
+        Mockito.verify(reservationMetrics).recordWriteRejected("reserve");
+
+        release.countDown();
+        Assertions.assertEquals("1", first.join());
+        Assertions.assertEquals("2", queued.join());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
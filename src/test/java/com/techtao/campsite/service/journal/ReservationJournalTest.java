@@ -0,0 +1,205 @@
+package com.techtao.campsite.service.journal;
+
+import com.techtao.campsite.domain.event.ReservationChangedEvent;
+import com.techtao.campsite.domain.model.DateRange;
+import com.techtao.campsite.domain.model.Sites;
+import com.techtao.campsite.persistence.entity.Reservation;
+import com.techtao.campsite.persistence.projection.ReservationWatermark;
+import com.techtao.campsite.persistence.repository.ReservationRepository;
+import com.techtao.campsite.service.OccupancyIndex;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+@ExtendWith(MockitoExtension.class)
+public class ReservationJournalTest {
+
+    @TempDir
+    public Path folder;
+
+    @Mock
+    private ReservationRepository reservationRepository;
+
+    private LocalDate currentDate;
+    private final List<Reservation> reservations = new ArrayList<>();
+    private volatile ReservationWatermark watermark;
+
+    @BeforeEach
+    public void setUp() {
+        currentDate = LocalDate.now();
+        watermark = new ReservationWatermark(1L, 1L, 0L);
+        Mockito.when(reservationRepository.findAllByEndToGreaterThanEqual(Mockito.any()))
+                .thenAnswer(invocation -> new ArrayList<>(reservations));
+        Mockito.when(reservationRepository.findWatermark()).thenAnswer(invocation -> watermark);
+    }
+
+    @Test
+    public void testTailTheAppliedChanges() throws Exception {
+        OccupancyIndex occupancyIndex = occupancyIndex();
+        ReservationJournal reservationJournal = journal(occupancyIndex);
+        occupancyIndex.load();
+
+        occupancyIndex.onReservationChanged(reserved(1L, 5, 7));
+        occupancyIndex.onReservationChanged(new ReservationChangedEvent(ReservationChangedEvent.Type.CANCELLED,
+                Sites.DEFAULT_SITE_ID, 1L, new DateRange(currentDate.plusDays(5), currentDate.plusDays(7)), null));
+
+        List<JournalEntry> entries = new ArrayList<>();
+        long last = reservationJournal.tail(0, entries::add);
+
+        Assertions.assertEquals(2, last);
+        Assertions.assertEquals(2, entries.size());
+        Assertions.assertEquals(ReservationChangedEvent.Type.RESERVED, entries.get(0).getEvent().getType());
+        Assertions.assertEquals(currentDate.plusDays(7), entries.get(0).getEvent().getCurrent().endTo);
+        Assertions.assertNull(entries.get(1).getEvent().getCurrent());
+        Assertions.assertEquals(last, reservationJournal.tail(last, entries::add));
+        reservationJournal.stop();
+    }
+
+    @Test
+    public void testRestoreTheIndexAfterACleanShutdown() throws Exception {
+        OccupancyIndex occupancyIndex = occupancyIndex();
+        ReservationJournal reservationJournal = journal(occupancyIndex);
+        occupancyIndex.load();
+        occupancyIndex.onReservationChanged(reserved(1L, 5, 7));
+        reservationJournal.stop();
+        watermark = new ReservationWatermark(2L, 2L, 0L);
+
+        OccupancyIndex restoredIndex = occupancyIndex();
+        ReservationJournal restoredJournal = journal(restoredIndex);
+        restoredIndex.onReservationChanged(reserved(2L, 10, 10));
+
+        List<DateRange> dateRanges = restoredIndex.findFreeRanges(Sites.DEFAULT_SITE_ID,
+                currentDate.plusDays(1), currentDate.plusDays(30));
+
+        Assertions.assertTrue(restoredIndex.isReady());
+        Assertions.assertEquals(3, dateRanges.size());
+        Assertions.assertEquals(currentDate.plusDays(4), dateRanges.get(0).endTo);
+        Assertions.assertEquals(2, restoredJournal.getLastSequence());
+        // Loaded at the first start only
+        Mockito.verify(reservationRepository, Mockito.times(1)).findAllByEndToGreaterThanEqual(Mockito.any());
+        restoredJournal.stop();
+    }
+
+    @Test
+    public void testRestoreTheIndexAfterACrash() throws Exception {
+        OccupancyIndex occupancyIndex = occupancyIndex();
+        ReservationJournal reservationJournal = journal(occupancyIndex);
+        occupancyIndex.load();
+        awaitSnapshot();
+        occupancyIndex.onReservationChanged(reserved(1L, 5, 7));
+        occupancyIndex.onReservationChanged(reserved(2L, 10, 10));
+        // Killed: no final snapshot, the changes are in the journal only
+        crash(reservationJournal);
+        watermark = new ReservationWatermark(3L, 4L, 0L);
+
+        OccupancyIndex restoredIndex = occupancyIndex();
+        ReservationJournal restoredJournal = journal(restoredIndex);
+
+        List<DateRange> dateRanges = restoredIndex.findFreeRanges(Sites.DEFAULT_SITE_ID,
+                currentDate.plusDays(1), currentDate.plusDays(30));
+
+        Assertions.assertTrue(restoredIndex.isReady());
+        Assertions.assertEquals(new ReservationWatermark(3L, 4L, 0L), restoredIndex.getWatermark());
+        Assertions.assertEquals(3, dateRanges.size());
+        Assertions.assertEquals(currentDate.plusDays(9), dateRanges.get(1).endTo);
+        Assertions.assertEquals(2, restoredJournal.getLastSequence());
+        Mockito.verify(reservationRepository, Mockito.times(1)).findAllByEndToGreaterThanEqual(Mockito.any());
+        restoredJournal.stop();
+    }
+
+    @Test
+    public void testLoadFromTheDatabaseWhenAChangeIsLostInACrash() throws Exception {
+        OccupancyIndex occupancyIndex = occupancyIndex();
+        ReservationJournal reservationJournal = journal(occupancyIndex);
+        occupancyIndex.load();
+        awaitSnapshot();
+        occupancyIndex.onReservationChanged(reserved(1L, 5, 7));
+        crash(reservationJournal);
+        // Committed by the crashed instance, but never applied to its index
+        watermark = new ReservationWatermark(3L, 4L, 0L);
+
+        OccupancyIndex restoredIndex = occupancyIndex();
+        ReservationJournal restoredJournal = journal(restoredIndex);
+
+        Assertions.assertFalse(restoredIndex.isReady());
+        restoredJournal.stop();
+    }
+
+    @Test
+    public void testLoadFromTheDatabaseWhenTheTableMoved() throws Exception {
+        OccupancyIndex occupancyIndex = occupancyIndex();
+        ReservationJournal reservationJournal = journal(occupancyIndex);
+        occupancyIndex.load();
+        occupancyIndex.onReservationChanged(reserved(1L, 5, 7));
+        reservationJournal.stop();
+
+        // Another instance reserved while this one was down
+        watermark = new ReservationWatermark(3L, 4L, 0L);
+        OccupancyIndex restoredIndex = occupancyIndex();
+        ReservationJournal restoredJournal = journal(restoredIndex);
+
+        Assertions.assertFalse(restoredIndex.isReady());
+        restoredJournal.stop();
+    }
+
+    private OccupancyIndex occupancyIndex() {
+        OccupancyIndex occupancyIndex = new OccupancyIndex();
+        ReflectionTestUtils.setField(occupancyIndex, "reservationRepository", reservationRepository);
+        return occupancyIndex;
+    }
+
+    private ReservationJournal journal(OccupancyIndex occupancyIndex) throws Exception {
+        ReservationJournal reservationJournal = new ReservationJournal();
+        ReflectionTestUtils.setField(reservationJournal, "occupancyIndex", occupancyIndex);
+        ReflectionTestUtils.setField(reservationJournal, "reservationRepository", reservationRepository);
+        ReflectionTestUtils.setField(reservationJournal, "enabled", true);
+        ReflectionTestUtils.setField(reservationJournal, "dir", folder.toString());
+        ReflectionTestUtils.setField(reservationJournal, "segmentSizeMb", 1);
+        ReflectionTestUtils.setField(reservationJournal, "snapshotEvery", 1000L);
+        ReflectionTestUtils.setField(reservationJournal, "forceMillis", 1000L);
+        reservationJournal.start();
+        return reservationJournal;
+    }
+
+    // The snapshot of the first load is taken in the background
+    private void awaitSnapshot() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!Files.exists(folder.resolve("snapshot-00000000000000000000.bin"))) {
+            Assertions.assertTrue(System.currentTimeMillis() < deadline, "No snapshot taken after the load");
+            Thread.sleep(10);
+        }
+    }
+
+    private void crash(ReservationJournal reservationJournal) throws InterruptedException {
+        ScheduledExecutorService maintenance = (ScheduledExecutorService) ReflectionTestUtils.getField(
+                reservationJournal, "maintenance");
+        maintenance.shutdownNow();
+        maintenance.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    // The change and its row, the way the service publishes it
+    private ReservationChangedEvent reserved(long reservationId, int startFrom, int endTo) {
+        Reservation reservation = new Reservation();
+        reservation.setId(reservationId);
+        reservation.setSiteId(Sites.DEFAULT_SITE_ID);
+        reservation.setStartFrom(currentDate.plusDays(startFrom));
+        reservation.setEndTo(currentDate.plusDays(endTo));
+        reservations.add(reservation);
+        return new ReservationChangedEvent(ReservationChangedEvent.Type.RESERVED, Sites.DEFAULT_SITE_ID,
+                reservationId, null, new DateRange(currentDate.plusDays(startFrom), currentDate.plusDays(endTo)), 0L);
+    }
+}
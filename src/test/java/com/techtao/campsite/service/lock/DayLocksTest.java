@@ -0,0 +1,54 @@
+package com.techtao.campsite.service.lock;
+
+import com.techtao.campsite.metrics.ReservationMetrics;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.time.LocalDate;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+@ExtendWith(MockitoExtension.class)
+public class DayLocksTest {
+
+    @Mock
+    private ReservationMetrics reservationMetrics;
+
+    @InjectMocks
+    private DayLocks dayLocks;
+
+    @Test
+    public void testOverlappingDaysWaitUntilReleased() throws Exception {
+        LocalDate day = LocalDate.now().plusDays(5);
+        Lease lease = dayLocks.tryLock("default", ReservationCoordinator.daysOf(day, day.plusDays(2)),
+                1, TimeUnit.SECONDS);
+        Assertions.assertNotNull(lease);
+
+        Assertions.assertNull(tryLockFromAnotherThread("default", day.plusDays(2)));
+        Assertions.assertNotNull(tryLockFromAnotherThread("default", day.plusDays(3)));
+        Assertions.assertNotNull(tryLockFromAnotherThread("lakeside", day));
+
+        lease.release();
+        Assertions.assertNotNull(tryLockFromAnotherThread("default", day));
+    }
+
+    private Lease tryLockFromAnotherThread(String siteId, LocalDate day) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                Lease lease = dayLocks.tryLock(siteId, ReservationCoordinator.daysOf(day, day),
+                        50, TimeUnit.MILLISECONDS);
+                if (Objects.nonNull(lease)) {
+                    lease.release();
+                }
+                return lease;
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        }).join();
+    }
+}
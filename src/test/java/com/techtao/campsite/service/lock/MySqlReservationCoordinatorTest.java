@@ -0,0 +1,97 @@
+package com.techtao.campsite.service.lock;
+
+import com.techtao.campsite.metrics.ReservationMetrics;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.jdbc.datasource.ConnectionHolder;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.time.LocalDate;
+import java.util.concurrent.TimeUnit;
+
+@ExtendWith(MockitoExtension.class)
+public class MySqlReservationCoordinatorTest {
+
+    @Mock
+    private ReservationMetrics reservationMetrics;
+
+    @Mock
+    private DataSource dataSource;
+
+    @Mock
+    private Connection connection;
+
+    @Mock
+    private PreparedStatement statement;
+
+    @Mock
+    private ResultSet resultSet;
+
+    @InjectMocks
+    private MySqlReservationCoordinator reservationCoordinator;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        Mockito.when(connection.prepareStatement(Mockito.anyString())).thenReturn(statement);
+        Mockito.when(statement.executeQuery()).thenReturn(resultSet);
+        Mockito.lenient().when(resultSet.next()).thenReturn(true);
+        Mockito.lenient().when(resultSet.getObject(1)).thenReturn(1L);
+    }
+
+    @AfterEach
+    public void clean() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+        if (TransactionSynchronizationManager.hasResource(dataSource)) {
+            TransactionSynchronizationManager.unbindResource(dataSource);
+        }
+    }
+
+    @Test
+    public void testLockOnTheConnectionOfTheTransaction() throws Exception {
+        TransactionSynchronizationManager.bindResource(dataSource, new ConnectionHolder(connection));
+        TransactionSynchronizationManager.initSynchronization();
+
+        LocalDate day = LocalDate.now().plusDays(5);
+        Lease lease = reservationCoordinator.tryLock("default", ReservationCoordinator.daysOf(day, day.plusDays(2)),
+                1, TimeUnit.SECONDS);
+        Assertions.assertNotNull(lease);
+        lease.releaseAfterCompletion();
+        for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+            synchronization.afterCompletion(TransactionSynchronization.STATUS_COMMITTED);
+        }
+
+        // Three days locked and all released at once, on the connection the transaction manager closes
+        Mockito.verify(connection, Mockito.times(3)).prepareStatement("SELECT GET_LOCK(?, ?)");
+        Mockito.verify(connection).prepareStatement("SELECT RELEASE_ALL_LOCKS()");
+        Mockito.verify(dataSource, Mockito.never()).getConnection();
+        Mockito.verify(connection, Mockito.never()).close();
+    }
+
+    @Test
+    public void testLockOnAConnectionOfItsOwnOutsideATransaction() throws Exception {
+        Mockito.when(dataSource.getConnection()).thenReturn(connection);
+
+        LocalDate day = LocalDate.now().plusDays(5);
+        Lease lease = reservationCoordinator.tryLock("default", ReservationCoordinator.daysOf(day, day),
+                1, TimeUnit.SECONDS);
+        Assertions.assertNotNull(lease);
+        lease.release();
+
+        Mockito.verify(connection).prepareStatement("SELECT RELEASE_ALL_LOCKS()");
+        Mockito.verify(connection).close();
+    }
+}